@@ -0,0 +1,93 @@
+import java.util.ArrayList;
+import java.util.Random;
+
+// What benchmarks.NearestUsersBenchmark measures: the k nearest users from
+// the 2d tree and the grid, against a linear scan over the same users for
+// the same radius. The old scan kept the first 25 users it found in range;
+// the other keeps the 25 closest.
+public class NearestUsersCases {
+	private static final int K = 25;
+	private static final int QUERIES = 1024;
+
+	private int users;
+	private int dist;
+	private int[] ids;
+	private double[] lats;
+	private double[] lons;
+	private int[] ages;
+	private boolean[] pics;
+	private KDTree tree;
+	private GeoGrid grid;
+	private double[] queryLats = new double[QUERIES];
+	private double[] queryLons = new double[QUERIES];
+	private int next;
+	private SearchFilter anyone = new SearchFilter(0, Integer.MAX_VALUE, false);
+
+	// users spread evenly over a couple of hundred kilometers, searched for
+	// within dist meters
+	public NearestUsersCases(int users, int dist) {
+		this.users = users;
+		this.dist = dist;
+		Random rand = new Random(1);
+		this.ids = new int[users];
+		this.lats = new double[users];
+		this.lons = new double[users];
+		this.ages = new int[users];
+		this.pics = new boolean[users];
+		this.grid = new GeoGrid();
+		for (int i = 0; i < users; i++) {
+			this.ids[i] = i + 1;
+			this.lats[i] = 39 + 2 * rand.nextDouble();
+			this.lons[i] = -75 + 2 * rand.nextDouble();
+			this.ages[i] = 13 + rand.nextInt(60);
+			this.grid.update(this.ids[i], this.lats[i], this.lons[i], this.ages[i], false);
+		}
+		this.tree = new KDTree(this.ids, this.lats, this.lons, this.ages, this.pics, users);
+		for (int i = 0; i < QUERIES; i++) {
+			this.queryLats[i] = 39.5 + rand.nextDouble();
+			this.queryLons[i] = -74.5 + rand.nextDouble();
+		}
+	}
+
+	public ArrayList<Integer> firstFoundScan() {
+		int q = this.nextQuery();
+		ArrayList<Integer> rslts = new ArrayList<Integer>();
+		for (int i = 0; i < this.users && rslts.size() < K; i++) {
+			if (UserProximityManager.computeDistance(this.queryLats[q], this.queryLons[q], this.lats[i],
+					this.lons[i]) <= this.dist) {
+				rslts.add(this.ids[i]);
+			}
+		}
+		return rslts;
+	}
+
+	public ArrayList<Integer> nearestScan() {
+		NearestUsers near = this.newSearch();
+		for (int i = 0; i < this.users; i++) {
+			near.offer(this.ids[i], this.lats[i], this.lons[i], this.ages[i], this.pics[i]);
+		}
+		return near.toSortedList();
+	}
+
+	public ArrayList<Integer> nearestTree() {
+		NearestUsers near = this.newSearch();
+		this.tree.nearest(near);
+		return near.toSortedList();
+	}
+
+	public ArrayList<Integer> nearestGrid() {
+		NearestUsers near = this.newSearch();
+		this.grid.nearest(near);
+		return near.toSortedList();
+	}
+
+	private NearestUsers newSearch() {
+		int q = this.nextQuery();
+		return new NearestUsers(this.queryLats[q], this.queryLons[q], this.dist, K, -1, this.anyone);
+	}
+
+	private int nextQuery() {
+		this.next = (this.next + 1) & (QUERIES - 1);
+		return this.next;
+	}
+}
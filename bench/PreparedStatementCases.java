@@ -0,0 +1,69 @@
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Random;
+
+// What benchmarks.PreparedStatementBenchmark measures: the profile lookup
+// Database makes for every uncached user, against a throwaway SQLite
+// database, with the statement prepared and closed on every call as it used
+// to be, and taken from the PooledConnection's cache as it is now.
+public class PreparedStatementCases {
+	private static final String GET_USER = "SELECT Username, AboutMe, Age, Points, Exp, Pic FROM Users WHERE UserID=?;";
+
+	private int users;
+	private File file;
+	private Connection connection;
+	private PooledConnection pooled;
+	private Random rand = new Random(1);
+
+	public PreparedStatementCases(int users) throws Exception {
+		this.users = users;
+		this.file = File.createTempFile("bench", ".sqlite");
+		this.file.deleteOnExit();
+		Class.forName("org.sqlite.JDBC");
+		this.connection = DriverManager.getConnection("jdbc:sqlite:" + this.file.getPath());
+		Statement stmt = this.connection.createStatement();
+		stmt.executeUpdate("CREATE TABLE Users ( UserID integer not null primary key autoincrement, UserName varchar(255) not null UNIQUE, PassWord varchar(255), AboutMe varchar(1023), Age int, EMailAddress varchar(255) , Exp int, Points int, Pic int);");
+		stmt.close();
+
+		this.connection.setAutoCommit(false);
+		PreparedStatement insert = this.connection.prepareStatement(
+				"INSERT INTO Users (UserName, PassWord, AboutMe, Age, EMailAddress, Exp, Points, Pic) VALUES (?, 'x', 'about me', ?, ?, 0, 0, 0);");
+		for (int i = 0; i < users; i++) {
+			insert.setString(1, "user" + i);
+			insert.setInt(2, 13 + i % 60);
+			insert.setString(3, "user" + i + "@example.com");
+			insert.executeUpdate();
+		}
+		insert.close();
+		this.connection.commit();
+		this.pooled = new PooledConnection(this.connection);
+	}
+
+	public String preparePerCall() throws Exception {
+		PreparedStatement stmt = this.connection.prepareStatement(GET_USER);
+		try {
+			return this.read(stmt);
+		} finally {
+			stmt.close();
+		}
+	}
+
+	public String cachedStatement() throws Exception {
+		return this.read(this.pooled.prepare(GET_USER));
+	}
+
+	private String read(PreparedStatement stmt) throws Exception {
+		stmt.setInt(1, 1 + this.rand.nextInt(this.users));
+		ResultSet rs = stmt.executeQuery();
+		try {
+			rs.next();
+			return rs.getString(1);
+		} finally {
+			rs.close();
+		}
+	}
+}
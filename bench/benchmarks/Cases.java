@@ -0,0 +1,66 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+
+// Reaches the server's classes for the benchmarks. JMH won't generate
+// benchmarks in the default package, and this package can't name the
+// server's classes, so they are looked up by name here, along with the
+// default package XxxCases classes next to this folder that set up what a
+// benchmark measures. Methods come back as handles, which kept in static
+// final fields the JIT treats as constants, so a call through one compiles
+// to a direct call and costs the measurement nothing.
+//
+// Benchmarks need jmh-core 1.37, jopt-simple and commons-math3 on the
+// classpath, jmh-generator-annprocess as an annotation processor, and
+// sqlite-jdbc for the database ones. From the project folder:
+//   javac -cp lib/xstream-1.4.2.jar:lib/sqlite-jdbc-3.8.11.1.jar:$JMH -processorpath $JMH:$ANNPROCESS \
+//     -d bench-out src/*.java bench/*.java bench/benchmarks/*.java
+//   java -cp bench-out:lib/xstream-1.4.2.jar:lib/sqlite-jdbc-3.8.11.1.jar:$JMH org.openjdk.jmh.Main <benchmark>
+// where $JMH lists the three jars and <benchmark> is a class name here,
+// such as NearestUsersBenchmark, or nothing to run them all.
+public class Cases {
+	// Makes an instance of the class, passing Integer arguments as ints.
+	public static Object create(String className, Object... args) throws Exception {
+		Class<?>[] types = new Class<?>[args.length];
+		for (int i = 0; i < args.length; i++) {
+			types[i] = args[i] instanceof Integer ? int.class : args[i].getClass();
+		}
+		return Class.forName(className).getConstructor(types).newInstance(args);
+	}
+
+	// Returns the class's only public method with that name. Every object
+	// it takes or returns is typed as Object, and primitives are left as
+	// they are. An instance method takes its instance first.
+	public static MethodHandle method(String className, String name) {
+		try {
+			Method found = null;
+			for (Method m : Class.forName(className).getMethods()) {
+				if (m.getName().equals(name)) {
+					if (found != null) {
+						throw new IllegalArgumentException(className + "." + name + " is overloaded");
+					}
+					found = m;
+				}
+			}
+			if (found == null) {
+				throw new IllegalArgumentException("No public method " + className + "." + name);
+			}
+			MethodHandle handle = MethodHandles.publicLookup().unreflect(found);
+			MethodType type = handle.type();
+			MethodType erased = MethodType.methodType(erase(type.returnType()));
+			for (Class<?> param : type.parameterArray()) {
+				erased = erased.appendParameterTypes(erase(param));
+			}
+			return handle.asType(erased);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException("Cannot use " + className + "." + name, e);
+		}
+	}
+
+	private static Class<?> erase(Class<?> type) {
+		return type.isPrimitive() ? type : Object.class;
+	}
+}
@@ -0,0 +1,53 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+// One search for the 25 nearest users, by each engine. See
+// NearestUsersCases for what each case does.
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NearestUsersBenchmark extends CaseBenchmark {
+	private static final MethodHandle FIRST_FOUND_SCAN = Cases.method("NearestUsersCases", "firstFoundScan");
+	private static final MethodHandle NEAREST_SCAN = Cases.method("NearestUsersCases", "nearestScan");
+	private static final MethodHandle NEAREST_TREE = Cases.method("NearestUsersCases", "nearestTree");
+	private static final MethodHandle NEAREST_GRID = Cases.method("NearestUsersCases", "nearestGrid");
+
+	@Param({ "10000", "300000" })
+	public int users;
+
+	// in meters
+	@Param({ "1000", "20000" })
+	public int dist;
+
+	private Object cases;
+
+	@Setup
+	public void setUp() throws Exception {
+		this.cases = Cases.create("NearestUsersCases", this.users, this.dist);
+	}
+
+	@Benchmark
+	public Object firstFoundScan() throws Throwable {
+		return (Object) FIRST_FOUND_SCAN.invokeExact(this.cases);
+	}
+
+	@Benchmark
+	public Object nearestScan() throws Throwable {
+		return (Object) NEAREST_SCAN.invokeExact(this.cases);
+	}
+
+	@Benchmark
+	public Object nearestTree() throws Throwable {
+		return (Object) NEAREST_TREE.invokeExact(this.cases);
+	}
+
+	@Benchmark
+	public Object nearestGrid() throws Throwable {
+		return (Object) NEAREST_GRID.invokeExact(this.cases);
+	}
+}
@@ -0,0 +1,38 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+// One profile lookup by user ID, preparing the statement each time against
+// reusing the cached one. See PreparedStatementCases for what each case
+// does.
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PreparedStatementBenchmark extends CaseBenchmark {
+	private static final MethodHandle PREPARE_PER_CALL = Cases.method("PreparedStatementCases", "preparePerCall");
+	private static final MethodHandle CACHED_STATEMENT = Cases.method("PreparedStatementCases", "cachedStatement");
+
+	@Param({ "10000" })
+	public int users;
+
+	private Object cases;
+
+	@Setup
+	public void setUp() throws Exception {
+		this.cases = Cases.create("PreparedStatementCases", this.users);
+	}
+
+	@Benchmark
+	public Object preparePerCall() throws Throwable {
+		return (Object) PREPARE_PER_CALL.invokeExact(this.cases);
+	}
+
+	@Benchmark
+	public Object cachedStatement() throws Throwable {
+		return (Object) CACHED_STATEMENT.invokeExact(this.cases);
+	}
+}
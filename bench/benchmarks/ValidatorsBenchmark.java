@@ -0,0 +1,66 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+// Request validation before and after: the email regex the server used to
+// compile on every call against Validators' single pass, and reading a
+// number from a header with Integer.parseInt, whose failures build a
+// NumberFormatException with a stack trace, against RequestHeaders.parseInt,
+// which throws a shared ValidationException. Each case goes through its own
+// rotation of inputs.
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ValidatorsBenchmark extends CaseBenchmark {
+	private static final MethodHandle OLD_EMAIL_REGEX = Cases.method("ValidatorsCases", "oldIsValidEmailAddress");
+	private static final MethodHandle EMAIL_VALIDATOR = Cases.method("Validators", "isValidEmailAddress");
+	private static final MethodHandle HEADER_PARSE_INT = Cases.method("RequestHeaders", "parseInt");
+
+	private static final String[] EMAILS = { "first.last@sub.example.co.uk", "bob@example.com" };
+	private static final String[] NUMBERS = { "2147483647", "-42", "30", "600" };
+	// the same mistakes the header parser sees: stray letters, too many
+	// digits
+	private static final String[] BAD_NUMBERS = { "12x", "abc", "99999999999", "-" };
+
+	private int next;
+
+	@Benchmark
+	public boolean oldEmailRegex() throws Throwable {
+		return (boolean) OLD_EMAIL_REGEX.invokeExact((Object) EMAILS[this.next++ & 1]);
+	}
+
+	@Benchmark
+	public boolean emailValidator() throws Throwable {
+		return (boolean) EMAIL_VALIDATOR.invokeExact((Object) EMAILS[this.next++ & 1]);
+	}
+
+	@Benchmark
+	public int integerParseInt() {
+		return Integer.parseInt(NUMBERS[this.next++ & 3]);
+	}
+
+	@Benchmark
+	public int headerParseInt() throws Throwable {
+		return (int) HEADER_PARSE_INT.invokeExact((Object) NUMBERS[this.next++ & 3]);
+	}
+
+	@Benchmark
+	public Object integerParseIntBadInput() {
+		try {
+			return Integer.parseInt(BAD_NUMBERS[this.next++ & 3]);
+		} catch (NumberFormatException e) {
+			return e;
+		}
+	}
+
+	@Benchmark
+	public Object headerParseIntBadInput() {
+		try {
+			return (int) HEADER_PARSE_INT.invokeExact((Object) BAD_NUMBERS[this.next++ & 3]);
+		} catch (Throwable e) {
+			return e;
+		}
+	}
+}
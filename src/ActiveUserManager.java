@@ -1,14 +1,34 @@
+// Keeps track of which users have sent a heartbeat recently. There is one
+// entry per active user, holding their latest position. Each user also sits
+// in a timing wheel slot for the moment they would expire; when that slot
+// comes due they are either removed or, if they have sent a heartbeat since,
+// put back in the wheel for their new expiry time.
+public class ActiveUserManager implements Runnable {
+	private static final long TICK_LENGTH = 1000;
+	private static final int LOCK_STRIPES = 64;
 
-import java.util.HashMap;
-import java.util.LinkedList;
+	private long ttl;
+	private PresenceStore store = new PresenceStore();
+	private TimingWheel wheel;
 
-public class ActiveUserManager implements Runnable {
-	private LinkedList<HashMap<Integer, String>> mapQueue;
+	// A heartbeat and the expiry of the same user must not interleave, or the
+	// grid could lose a user that is still in the store.
+	private Object[] locks = new Object[LOCK_STRIPES];
+
+	// Kept up to date on every heartbeat when the grid engine is in use.
+	private GeoGrid grid;
 
 	public ActiveUserManager() {
-		this.mapQueue = new LinkedList<HashMap<Integer, String>>();
-		for (int i = 0; i < 6; i++) {
-			this.mapQueue.add(new HashMap<Integer, String>());
+		this(30000);
+	}
+
+	// ttl is how long a user stays active after their last heartbeat, in
+	// milliseconds.
+	public ActiveUserManager(long ttl) {
+		this.ttl = ttl;
+		this.wheel = new TimingWheel(TICK_LENGTH, ttl, System.currentTimeMillis());
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			this.locks[i] = new Object();
 		}
 	}
 
@@ -16,22 +36,62 @@ public class ActiveUserManager implements Runnable {
 	public void run() {
 		while (true) {
 			try {
-				Thread.sleep(5000);
+				Thread.sleep(TICK_LENGTH);
 			} catch (InterruptedException e) {
 				e.printStackTrace();
 			}
-			this.mapQueue.offerFirst(new HashMap<Integer, String>());
-			this.mapQueue.removeLast();
-			//System.out.println("Five seconds has passed, and a map has been removed");
+			this.expireUsers(System.currentTimeMillis());
+		}
+	}
+
+	private void expireUsers(long now) {
+		for (int userID : this.wheel.advance(now)) {
+			synchronized (this.locks[userID & (LOCK_STRIPES - 1)]) {
+				long seen = this.store.expire(userID, now - this.ttl);
+				if (seen >= 0) {
+					this.wheel.schedule(userID, seen + this.ttl);
+				} else if (this.grid != null) {
+					this.grid.remove(userID);
+				}
+			}
+		}
+	}
+
+	// The user's age and whether they have a picture are kept with their
+	// position, so that searches can filter on them.
+	public void addUser(int userID, double lat, double lon, int age, boolean hasPic) {
+		this.addUser(userID, lat, lon, System.currentTimeMillis(), age, hasPic);
+	}
+
+	// Adds a user whose last heartbeat was at seen, such as one restored from
+	// a snapshot. Users who have already expired are ignored. Returns whether
+	// the user was added.
+	public boolean addUser(int userID, double lat, double lon, long seen, int age, boolean hasPic) {
+		if (seen + this.ttl <= System.currentTimeMillis()) {
+			return false;
+		}
+		synchronized (this.locks[userID & (LOCK_STRIPES - 1)]) {
+			// Users already in the wheel are rescheduled when their slot comes
+			// due, so only new users need to be added to it.
+			if (this.store.put(userID, lat, lon, seen, age, hasPic)) {
+				this.wheel.schedule(userID, seen + this.ttl);
+			}
+			if (this.grid != null) {
+				this.grid.update(userID, lat, lon, age, hasPic);
+			}
 		}
+		return true;
 	}
 
-	public void addUser(int userID, String coords) {
-		this.mapQueue.getFirst().put(userID, coords);
+	// Returns every active user at their latest position.
+	public PresenceTable snapshot() {
+		PresenceTable snapshot = new PresenceTable(this.store.size());
+		this.store.copyInto(snapshot);
+		return snapshot;
 	}
 
-	public LinkedList<HashMap<Integer, String>> getMapQueue() {
-		return this.mapQueue;
+	public void setGrid(GeoGrid grid) {
+		this.grid = grid;
 	}
 
 }
@@ -0,0 +1,30 @@
+import java.net.HttpURLConnection;
+
+// A caller who isn't who they say they are: a wrong password, a name
+// nobody has, a stale session, or a node without the secret. Like
+// ValidationException these are the client's doing and can come in floods,
+// so they carry no stack trace and are made once and shared. Each knows the
+// status it's answered with.
+public class AuthException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	// the same for an unknown name as for a wrong password, so that logging
+	// in can't be used to find out who has an account
+	public static final AuthException BAD_LOGIN = new AuthException("The username or password is wrong.",
+			HttpURLConnection.HTTP_UNAUTHORIZED);
+	public static final AuthException BAD_SESSION = new AuthException("The session is invalid or has expired.",
+			HttpURLConnection.HTTP_UNAUTHORIZED);
+	public static final AuthException NOT_A_NODE = new AuthException("Only other nodes may send this.",
+			HttpURLConnection.HTTP_FORBIDDEN);
+
+	private int status;
+
+	public AuthException(String message, int status) {
+		super(message, null, false, false);
+		this.status = status;
+	}
+
+	public int getStatus() {
+		return this.status;
+	}
+}
@@ -0,0 +1,20 @@
+import java.net.HttpURLConnection;
+
+// The server turning work away because too much of it is waiting already,
+// such as logins once the hashing queue is full. That happens in floods, so
+// like ValidationException these carry no stack trace and are made once and
+// shared. They are answered with a 503, for the client to try again later.
+public class BusyException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	public static final BusyException TOO_MANY_LOGINS = new BusyException(
+			"Too many logins at once, try again shortly.");
+
+	public BusyException(String message) {
+		super(message, null, false, false);
+	}
+
+	public int getStatus() {
+		return HttpURLConnection.HTTP_UNAVAILABLE;
+	}
+}
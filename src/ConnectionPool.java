@@ -0,0 +1,116 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A bounded pool of SQLite connections that are configured once, when they
+// are opened, and then reused for transaction after transaction. Keeps
+// counts of how long callers waited and how busy the pool is, for /stats.
+public class ConnectionPool {
+	private static final long MAX_WAIT = 30000;
+
+	private String name;
+	private String connectionURL;
+	private boolean readOnly;
+	private int maxSize;
+
+	private ArrayBlockingQueue<PooledConnection> idle;
+	private AtomicInteger opened = new AtomicInteger();
+	private AtomicInteger inUse = new AtomicInteger();
+
+	private AtomicLong borrows = new AtomicLong();
+	private AtomicLong waits = new AtomicLong();
+	private AtomicLong totalWaitNanos = new AtomicLong();
+	private AtomicLong maxWaitNanos = new AtomicLong();
+
+	public ConnectionPool(String name, String connectionURL, int maxSize, boolean readOnly) {
+		this.name = name;
+		this.connectionURL = connectionURL;
+		this.maxSize = maxSize;
+		this.readOnly = readOnly;
+		this.idle = new ArrayBlockingQueue<PooledConnection>(maxSize);
+	}
+
+	// Hands out an idle connection, opening a new one if the pool isn't full
+	// yet, and otherwise waits for one to be returned.
+	public PooledConnection borrow() throws Exception {
+		this.borrows.incrementAndGet();
+		PooledConnection conn = this.idle.poll();
+		if (conn == null && this.opened.incrementAndGet() <= this.maxSize) {
+			try {
+				conn = this.open();
+			} catch (SQLException e) {
+				this.opened.decrementAndGet();
+				System.out.println(e.getMessage());
+				throw new Exception("Error with Database");
+			}
+		} else if (conn == null) {
+			this.opened.decrementAndGet();
+			long start = System.nanoTime();
+			conn = this.idle.poll(MAX_WAIT, TimeUnit.MILLISECONDS);
+			long waited = System.nanoTime() - start;
+			this.waits.incrementAndGet();
+			this.totalWaitNanos.addAndGet(waited);
+			long max;
+			while (waited > (max = this.maxWaitNanos.get()) && !this.maxWaitNanos.compareAndSet(max, waited)) {
+			}
+			if (conn == null) {
+				throw new Exception("Timed out waiting for a database connection");
+			}
+		}
+		this.inUse.incrementAndGet();
+		return conn;
+	}
+
+	// Returns a connection to the pool. Connections that failed in a way that
+	// may have left them unusable are closed instead, and replaced on demand.
+	public void release(PooledConnection conn, boolean broken) {
+		this.inUse.decrementAndGet();
+		if (broken) {
+			this.opened.decrementAndGet();
+			try {
+				conn.close();
+			} catch (SQLException e) {
+				System.out.println(e.getMessage());
+			}
+			return;
+		}
+		this.idle.offer(conn);
+	}
+
+	public String getStats() {
+		long waitCount = this.waits.get();
+		return this.name + ".size " + this.maxSize + "\n" + this.name + ".open " + this.opened.get() + "\n"
+				+ this.name + ".inUse " + this.inUse.get() + "\n" + this.name + ".borrows " + this.borrows.get()
+				+ "\n" + this.name + ".waits " + waitCount + "\n" + this.name + ".avgWaitMicros "
+				+ (waitCount == 0 ? 0 : this.totalWaitNanos.get() / waitCount / 1000) + "\n" + this.name
+				+ ".maxWaitMicros " + this.maxWaitNanos.get() / 1000 + "\n";
+	}
+
+	// WAL lets readers carry on while the writer commits, and with WAL,
+	// synchronous=NORMAL only syncs at checkpoints rather than every commit.
+	private PooledConnection open() throws SQLException {
+		Connection conn = DriverManager.getConnection(this.connectionURL);
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.execute("PRAGMA journal_mode = WAL;");
+			stmt.execute("PRAGMA synchronous = NORMAL;");
+			// negative means KiB, so about 8MB of page cache per connection
+			stmt.execute("PRAGMA cache_size = -8192;");
+			stmt.execute("PRAGMA busy_timeout = 5000;");
+			if (this.readOnly) {
+				stmt.execute("PRAGMA query_only = 1;");
+			}
+		} finally {
+			stmt.close();
+		}
+		// from now on, no changes will be committed until all work is done,
+		// and the endTransaction method is called
+		conn.setAutoCommit(false);
+		return new PooledConnection(conn);
+	}
+}
@@ -1,14 +1,69 @@
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.regex.Pattern;
-
-public class Database {
+import java.util.HashMap;
+import java.util.List;
+
+// The SQLite storage engine.
+public class Database implements Storage {
+	private static final int READER_CONNECTIONS = 8;
+
+	// The schema is upgraded one version at a time, by running the
+	// statements listed for each version in order. The version the database
+	// is at is kept in its user_version. The statements of versions 1 and 2
+	// also have to be safe to run on a database that already has the change,
+	// since databases from before versioning may have some of them.
+	private static final String[][] MIGRATIONS = {
+			// version 1: the original tables
+			{ "CREATE TABLE IF NOT EXISTS Users ( UserID integer not null primary key autoincrement, UserName varchar(255) not null UNIQUE, PassWord varchar(255), AboutMe varchar(1023), Age int, EMailAddress varchar(255) , Exp int, Points int, Pic int);",
+					"CREATE TABLE IF NOT EXISTS MessageStatuses (MessageStatus varchar(20));",
+					"CREATE TABLE IF NOT EXISTS Messages ( MessageID integer not null primary key autoincrement, Contents varchar(255), MessageStatus varchar(20), FromUserID Integer, ToUserID Integer,  FOREIGN KEY(FromUserID) REFERENCES Users(UserID), FOREIGN KEY(ToUserID) REFERENCES Users(UserID), FOREIGN KEY(MessageStatus) REFERENCES MessageStatuses(MessageStatus));" },
+			// version 2: the statuses the code actually uses, and indexes for
+			// the two lookups made on every heartbeat. The sender's index
+			// covers its query outright, since MessageID is the rowid.
+			{ "UPDATE MessageStatuses SET MessageStatus = 'Failed' WHERE MessageStatus = 'Error';",
+					"UPDATE MessageStatuses SET MessageStatus = 'Delivered' WHERE MessageStatus = 'delivered';",
+					"INSERT INTO MessageStatuses (MessageStatus) SELECT Status FROM (SELECT 'Undelivered' AS Status UNION ALL SELECT 'Delivered' UNION ALL SELECT 'Failed') WHERE Status NOT IN (SELECT MessageStatus FROM MessageStatuses);",
+					"UPDATE Messages SET MessageStatus = 'Failed' WHERE MessageStatus = 'Error';",
+					"UPDATE Messages SET MessageStatus = 'Delivered' WHERE MessageStatus = 'delivered';",
+					"CREATE INDEX IF NOT EXISTS MessagesByRecipient ON Messages (ToUserID, MessageStatus);",
+					"CREATE INDEX IF NOT EXISTS MessagesBySender ON Messages (FromUserID, MessageStatus);" },
+			// version 3: when each message was sent, so that those never
+			// delivered can expire, and the status receipts are left in once
+			// their sender has them, until MessageSweeper deletes them. Messages
+			// from before the upgrade count as sent at the upgrade.
+			{ "INSERT INTO MessageStatuses (MessageStatus) VALUES ('Acknowledged');",
+					"ALTER TABLE Messages ADD COLUMN SentAt integer;",
+					"UPDATE Messages SET SentAt = CAST(strftime('%s', 'now') AS integer) * 1000;",
+					"CREATE INDEX IF NOT EXISTS MessagesByStatus ON Messages (MessageStatus, SentAt);" },
+			// version 4: the recipient's index covers the new messages query
+			// too, contents and all, so it never has to go to the table.
+			// Messages only last until the sweeper deletes them, so the
+			// index stays small even with the contents in it.
+			{ "DROP INDEX IF EXISTS MessagesByRecipient;",
+					"CREATE INDEX MessagesByRecipient ON Messages (ToUserID, MessageStatus, FromUserID, Contents);" } };
+
+	// SQLite only allows one writer at a time anyway, so writers queue up for
+	// a single connection here rather than fighting over the file lock, while
+	// searches and logins use their own read-only connections.
+	private static ConnectionPool writerPool;
+	private static ConnectionPool readerPool;
+
+	// Profiles are read far more often than they change. Set the number
+	// kept with -Dprofile.cache.size.
+	private static ProfileCache profiles = new ProfileCache(Integer.getInteger("profile.cache.size", 100000));
+
+	private PooledConnection pooled = null;
 	private Connection connection = null;
+	private ConnectionPool pool = null;
+	// users whose profiles this transaction changed, to drop from the cache
+	// once it ends
+	private ArrayList<Integer> changedUsers = new ArrayList<Integer>();
+	private boolean resetAll = false;
+	private LeaderboardChanges rankChanges = new LeaderboardChanges();
 
 	public static void initialize() {
 		try {
@@ -17,64 +72,196 @@ public class Database {
 			System.err.println(e.getClass().getName() + ": " + e.getMessage());
 			System.exit(0);
 		}
+		// file address of the database within this project's main folder,
+		// unless -Ddatabase.file points somewhere else, say for a test
+		String url = "jdbc:sqlite:" + System.getProperty("database.file", "database/stalkerDB.sqlite");
+		writerPool = new ConnectionPool("db.writer", url, 1, false);
+		readerPool = new ConnectionPool("db.reader", url, READER_CONNECTIONS, true);
+
+		Database db = new Database();
+		try {
+			db.startTransaction();
+			db.migrate();
+			db.loadLeaderboard();
+			db.endTransaction(true);
+		} catch (Exception e) {
+			System.err.println("Could not upgrade the database: " + e.getMessage());
+			try {
+				db.endTransaction(false);
+			} catch (Exception e1) {
+				System.err.println(e1.getMessage());
+			}
+			System.exit(0);
+		}
 	}
 
 	/**
-	 * Establishes a database connection and then starts a database transaction.
+	 * Brings the schema up to the latest version, creating it from scratch if
+	 * the database is empty.
 	 * 
 	 * @throws Exception
 	 */
-	public void startTransaction() throws Exception {
-		// file address of the database within this project's main folder:
-		String dbName = "database/stalkerDB.sqlite";
-		String connectionURL = "jdbc:sqlite:" + dbName;
+	public void migrate() throws Exception {
+		Statement migrateStmt = null;
+		ResultSet rs = null;
 
-		this.connection = null;
 		try {
-			// Opens a database connection
-			this.connection = DriverManager.getConnection(connectionURL);
+			migrateStmt = this.connection.createStatement();
+			rs = migrateStmt.executeQuery("PRAGMA user_version;");
+			int version = rs.next() ? rs.getInt(1) : 0;
+			rs.close();
+
+			for (; version < MIGRATIONS.length; version++) {
+				for (String sql : MIGRATIONS[version]) {
+					migrateStmt.execute(sql);
+				}
+				migrateStmt.execute("PRAGMA user_version = " + (version + 1) + ";");
+			}
 
-			// from now on, no changes will be committed until all work is done,
-			// and
-			// the endTransaction method is called
-			this.connection.setAutoCommit(false);
-		} catch (Exception e) {
+		} catch (SQLException e) {
 			System.out.println(e.getMessage());
-			throw new Exception("Error with Database");
+			throw new Exception("Database Error");
+		} finally {
+			try {
+				if (migrateStmt != null)
+					migrateStmt.close();
+			} catch (SQLException e) {
+				System.out.println(e.getMessage());
+				throw new Exception("Database Error");
+			}
 		}
+	}
+
+	public static String getPoolStats() {
+		return writerPool.getStats() + readerPool.getStats();
+	}
+
+	// Returns the user's profile if it's cached, or null, without needing a
+	// transaction.
+	public static User getCachedProfile(int userID) {
+		ScoreCounters scores = StorageManager.getScores();
+		scores.lockForRead();
+		try {
+			User usr = profiles.get(userID);
+			return usr == null ? null : scores.merge(usr);
+		} finally {
+			scores.unlockForRead();
+		}
+	}
 
+	public static String getProfileCacheStats() {
+		return profiles.getStats();
 	}
 
 	/**
-	 * ends and submits the current transaction and resets the connection.
+	 * Takes a database connection from the writer pool and then starts a
+	 * database transaction.
+	 * 
+	 * @throws Exception
+	 */
+	public void startTransaction() throws Exception {
+		this.start(writerPool);
+	}
+
+	/**
+	 * Takes a database connection from the read-only pool and then starts a
+	 * database transaction, which can't change anything.
+	 * 
+	 * @throws Exception
+	 */
+	public void startReadTransaction() throws Exception {
+		this.start(readerPool);
+	}
+
+	private void start(ConnectionPool pool) throws Exception {
+		this.pooled = pool.borrow();
+		this.connection = this.pooled.getConnection();
+		this.pool = pool;
+	}
+
+	/**
+	 * ends and submits the current transaction and gives the connection back
+	 * to its pool.
 	 * 
 	 * @param commit
 	 *            - whether the transaction succeeded or not.
 	 * @throws SQLException
 	 */
 	public void endTransaction(boolean commit) throws Exception {
+		if (this.pooled == null) {
+			return;
+		}
 
+		boolean broken = false;
+		boolean committed = false;
 		try {
 			if (commit) {
 				connection.commit();
+				committed = true;
 			} else {
 				connection.rollback();
+				this.pooled.forgetStatements();
 			}
 		} catch (SQLException e) {
 			System.out.println(e.getMessage());
+			broken = true;
 			throw new Exception("Error with Database");
 		} finally {
-			try {
-				connection.close();
-			} catch (SQLException e) {
-				System.out.println(e.getMessage());
-				throw new Exception("Error with Database");
-			}
+			this.pool.release(this.pooled, broken);
+			pooled = null;
 			connection = null;
+			pool = null;
+
+			// also after a rollback, in case something this transaction
+			// read back before rolling back got cached
+			for (Integer userID : this.changedUsers) {
+				profiles.invalidate(userID);
+			}
+			this.changedUsers.clear();
+			if (this.resetAll) {
+				profiles.clear();
+				if (committed) {
+					StorageManager.getLeaderboard().clear();
+				}
+				this.resetAll = false;
+			}
+
+			if (committed) {
+				this.rankChanges.apply(StorageManager.getLeaderboard());
+			} else {
+				this.rankChanges.clear();
+			}
 		}
 
 	}
 
+	// Savepoints let part of a transaction be undone without giving up the
+	// rest of it. They can't be nested here, as they all share one name.
+	public void savepoint() throws Exception {
+		this.executeCached("SAVEPOINT write;");
+		this.rankChanges.mark();
+	}
+
+	public void releaseSavepoint() throws Exception {
+		this.executeCached("RELEASE write;");
+	}
+
+	public void rollbackToSavepoint() throws Exception {
+		this.executeCached("ROLLBACK TO write;");
+		this.executeCached("RELEASE write;");
+		this.pooled.forgetStatements();
+		this.rankChanges.rollbackToMark();
+	}
+
+	private void executeCached(String sql) throws Exception {
+		try {
+			this.pooled.prepare(sql).execute();
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			throw new Exception("Database Error");
+		}
+	}
+
 	public void resetDatabase() {
 		Statement resetStmt = null;
 
@@ -82,11 +269,7 @@ public class Database {
 		String dropUsersString = "drop table if exists Users;";
 		String dropMessagesString = "drop table if exists Messages;";
 		String dropMessageStatusesString = "DROP TABLE IF EXISTS MessageStatuses;";
-
-		String userString = "CREATE TABLE Users ( UserID integer not null primary key autoincrement, UserName varchar(255) not null UNIQUE, PassWord varchar(255), AboutMe varchar(1023), Age int, EMailAddress varchar(255) , Exp int, Points int, Pic int);";
-		String messageStatusCreateString = "CREATE TABLE MessageStatuses (MessageStatus varchar(20));";
-		String messageStatusInsertString = "INSERT INTO MessageStatuses (MessageStatus) Values ('Undelivered'), ('Error'), ('delivered');";
-		String messageString = "CREATE TABLE Messages ( MessageID integer not null primary key autoincrement, Contents varchar(255), MessageStatus varchar(20), FromUserID Integer, ToUserID Integer,  FOREIGN KEY(FromUserID) REFERENCES Users(UserID), FOREIGN KEY(ToUserID) REFERENCES Users(UserID), FOREIGN KEY(MessageStatus) REFERENCES MessageStatuses(MessageStatus));";
+		String resetVersionString = "PRAGMA user_version = 0;";
 
 		try {
 
@@ -98,10 +281,9 @@ public class Database {
 			resetStmt.execute(dropMessageStatusesString);
 
 			// creates new, empty tables for the database.
-			resetStmt.execute(userString);
-			resetStmt.execute(messageStatusCreateString);
-			resetStmt.execute(messageStatusInsertString);
-			resetStmt.execute(messageString);
+			resetStmt.execute(resetVersionString);
+			this.migrate();
+			this.resetAll = true;
 
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -115,61 +297,116 @@ public class Database {
 		}
 	}
 
-	// TODO hash passwords
-	public int authenticate(String username, String password) throws Exception {
+	// Puts every user on the leaderboard with the points stored for them.
+	// Only done at startup, as it reads the whole table.
+	private void loadLeaderboard() throws Exception {
+		Statement loadStmt = null;
+		try {
+			loadStmt = this.connection.createStatement();
+			ResultSet rs = loadStmt.executeQuery("SELECT UserID, Points FROM Users;");
+			while (rs.next()) {
+				StorageManager.getLeaderboard().set(rs.getInt("UserID"), rs.getLong("Points"));
+			}
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			throw new Exception("Database Error");
+		} finally {
+			try {
+				if (loadStmt != null)
+					loadStmt.close();
+			} catch (SQLException e) {
+				System.out.println(e.getMessage());
+				throw new Exception("Database Error");
+			}
+		}
+	}
+
+	// Returns the user's profile, and puts their stored password, which is
+	// normally a PasswordHasher hash, in password[0]. Checking it is up to
+	// the caller, so that the connection isn't held while it's hashed.
+	public User getUserWithPassword(String username, String[] password) throws Exception {
+		ScoreCounters scores = StorageManager.getScores();
+		scores.lockForRead();
+		try {
+			return scores.merge(this.loadUserWithPassword(username, password));
+		} finally {
+			scores.unlockForRead();
+		}
+	}
+
+	private User loadUserWithPassword(String username, String[] password) throws Exception {
 
 		PreparedStatement authStmt = null;
 		ResultSet rs = null;
-		int userID = -1;
+		User usr = null;
 
-		String authString = "SELECT UserID, Password FROM Users WHERE UserName=?;";
+		String authString = "SELECT UserID, Password, AboutMe, Age, Points, Exp, Pic FROM Users WHERE UserName=?;";
+		long ticket = profiles.ticket();
 		// TODO check that it works
 		try {
-			authStmt = this.connection.prepareStatement(authString);
+			authStmt = this.pooled.prepare(authString);
 
 			authStmt.setString(1, username);
 
 			rs = authStmt.executeQuery();
 
 			if (!rs.next()) {
-				throw new Exception("User does not exist.");
-			}
-			if (!rs.getString("Password").equals(password)) {
-				throw new Exception("Password doesn't match.");
+				throw AuthException.BAD_LOGIN;
 			}
+			password[0] = rs.getString("Password");
 
-			userID = rs.getInt("UserID");
+			usr = new User(rs.getInt("UserID"), username, rs.getString("AboutMe"), rs.getInt("Age"),
+					rs.getInt("Points"), rs.getInt("Exp"), rs.getInt("Pic") > 0);
+			profiles.put(usr, ticket);
 
 		} catch (SQLException e) {
 			System.out.println(e.getMessage());
 			throw new Exception("Database Error");
 		} finally {
 			try {
-				if (authStmt != null)
-					authStmt.close();
+				// the statement is kept for next time, but its results
+				// mustn't hold the transaction open
+				if (rs != null)
+					rs.close();
 			} catch (SQLException e) {
 				System.out.println(e.getMessage());
 				throw new Exception("Database Error");
 			}
 		}
 
-		return userID;
+		return usr;
 	}
 
 	// This method should only be used when
 	// pulling a friend whose username you know.
 	public User getUserByName(String username) throws Exception {
+		ScoreCounters scores = StorageManager.getScores();
+		scores.lockForRead();
+		try {
+			return scores.merge(this.loadUserByName(username));
+		} finally {
+			scores.unlockForRead();
+		}
+	}
+
+	private User loadUserByName(String username) throws Exception {
 		PreparedStatement getStmt = null;
 		ResultSet rs = null;
 
-		if (!isValidUsername(username)) {
-			throw new Exception("This username does not have a valid format.");
+		if (!Validators.isValidUsername(username)) {
+			throw ValidationException.BAD_USERNAME;
+		}
+
+		User cached = profiles.getByName(username);
+		if (cached != null && cached.getUsername().equals(username)) {
+			return cached;
 		}
 
 		String getString = "SELECT UserID, AboutMe, Age, Points, Exp, Pic FROM Users WHERE UserName=?;";
+		long ticket = profiles.ticket();
 
 		try {
-			getStmt = this.connection.prepareStatement(getString);
+			getStmt = this.pooled.prepare(getString);
 			getStmt.setString(1, username);
 
 			rs = getStmt.executeQuery();
@@ -184,15 +421,19 @@ public class Database {
 			int exp = rs.getInt("Exp");
 			boolean hasPic = rs.getInt("Pic") > 0;
 
-			return new User(userID, username, aboutMe, age, points, exp, hasPic);
+			User usr = new User(userID, username, aboutMe, age, points, exp, hasPic);
+			profiles.put(usr, ticket);
+			return usr;
 
 		} catch (SQLException e) {
 			System.out.println(e.getMessage());
 			throw new Exception("Database Error");
 		} finally {
 			try {
-				if (getStmt != null)
-					getStmt.close();
+				// the statement is kept for next time, but its results
+				// mustn't hold the transaction open
+				if (rs != null)
+					rs.close();
 			} catch (SQLException e) {
 				System.out.println(e.getMessage());
 				throw new Exception("Database Error");
@@ -201,13 +442,29 @@ public class Database {
 	}
 
 	public User getUserByID(int userID) throws Exception {
+		ScoreCounters scores = StorageManager.getScores();
+		scores.lockForRead();
+		try {
+			return scores.merge(this.loadUserByID(userID));
+		} finally {
+			scores.unlockForRead();
+		}
+	}
+
+	private User loadUserByID(int userID) throws Exception {
 		PreparedStatement getStmt = null;
 		ResultSet rs = null;
 
+		User cached = profiles.get(userID);
+		if (cached != null) {
+			return cached;
+		}
+
 		String getString = "SELECT Username, AboutMe, Age, Points, Exp, Pic FROM Users WHERE UserID=?;";
+		long ticket = profiles.ticket();
 
 		try {
-			getStmt = this.connection.prepareStatement(getString);
+			getStmt = this.pooled.prepare(getString);
 			getStmt.setInt(1, userID);
 
 			rs = getStmt.executeQuery();
@@ -222,15 +479,19 @@ public class Database {
 			int exp = rs.getInt("Exp");
 			boolean hasPic = rs.getInt("Pic") > 0;
 
-			return new User(userID, username, aboutMe, age, points, exp, hasPic);
+			User usr = new User(userID, username, aboutMe, age, points, exp, hasPic);
+			profiles.put(usr, ticket);
+			return usr;
 
 		} catch (SQLException e) {
 			System.out.println(e.getMessage());
 			throw new Exception("Database Error");
 		} finally {
 			try {
-				if (getStmt != null)
-					getStmt.close();
+				// the statement is kept for next time, but its results
+				// mustn't hold the transaction open
+				if (rs != null)
+					rs.close();
 			} catch (SQLException e) {
 				System.out.println(e.getMessage());
 				throw new Exception("Database Error");
@@ -238,22 +499,72 @@ public class Database {
 		}
 	}
 
-	public void addXPToUser(int userID, int xpToAdd) throws Exception {
-		if (xpToAdd <= 0) {
-			throw new Exception("The number of points to add must be positive.");
+	// Loads the profiles of every user in userIDs, in the same order as
+	// userIDs, with a single query for the ones that aren't cached. Users
+	// that no longer exist are left out.
+	public ArrayList<User> getUsersByIDs(List<Integer> userIDs) throws Exception {
+		ArrayList<User> users = new ArrayList<User>(userIDs.size());
+		HashMap<Integer, User> found = new HashMap<Integer, User>();
+		ArrayList<Integer> missing = new ArrayList<Integer>();
+		ScoreCounters scores = StorageManager.getScores();
+		scores.lockForRead();
+		try {
+			for (Integer userID : userIDs) {
+				User cached = profiles.get(userID);
+				if (cached != null) {
+					found.put(userID, cached);
+				} else {
+					missing.add(userID);
+				}
+			}
+			if (!missing.isEmpty()) {
+				this.loadUsers(missing, found);
+			}
+
+			for (Integer userID : userIDs) {
+				User usr = found.get(userID);
+				if (usr != null) {
+					users.add(scores.merge(usr));
+				}
+			}
+		} finally {
+			scores.unlockForRead();
+		}
+		return users;
+	}
+
+	private void loadUsers(ArrayList<Integer> userIDs, HashMap<Integer, User> found) throws Exception {
+
+		// The list is padded out to a power of two by repeating the last ID,
+		// so only a handful of different statements ever get cached.
+		int params = 8;
+		while (params < userIDs.size()) {
+			params *= 2;
+		}
+		StringBuilder getString = new StringBuilder(
+				"SELECT UserID, Username, AboutMe, Age, Points, Exp, Pic FROM Users WHERE UserID IN (?");
+		for (int i = 1; i < params; i++) {
+			getString.append(",?");
 		}
-		PreparedStatement xpStmt = null;
-		String updateString = "Update Users SET Exp = Exp + ?, Points = Points + ? WHERE UserID = ?;";
+		getString.append(");");
+
+		PreparedStatement getStmt = null;
+		ResultSet rs = null;
+		long ticket = profiles.ticket();
 
 		try {
-			xpStmt = this.connection.prepareStatement(updateString);
-			xpStmt.setInt(1, xpToAdd);
-			xpStmt.setInt(2, xpToAdd);
-			xpStmt.setInt(3, userID);
+			getStmt = this.pooled.prepare(getString.toString());
+			for (int i = 0; i < params; i++) {
+				getStmt.setInt(i + 1, userIDs.get(Math.min(i, userIDs.size() - 1)));
+			}
 
-			// TODO check this
-			if (xpStmt.executeUpdate() == 0) {
-				throw new Exception("Database Error");
+			rs = getStmt.executeQuery();
+			while (rs.next()) {
+				int userID = rs.getInt("UserID");
+				User usr = new User(userID, rs.getString("Username"), rs.getString("AboutMe"), rs.getInt("Age"),
+						rs.getInt("Points"), rs.getInt("Exp"), rs.getInt("Pic") > 0);
+				profiles.put(usr, ticket);
+				found.put(userID, usr);
 			}
 
 		} catch (SQLException e) {
@@ -261,71 +572,55 @@ public class Database {
 			throw new Exception("Database Error");
 		} finally {
 			try {
-				if (xpStmt != null)
-					xpStmt.close();
+				if (rs != null)
+					rs.close();
 			} catch (SQLException e) {
 				System.out.println(e.getMessage());
 				throw new Exception("Database Error");
 			}
 		}
-
 	}
 
-	public void updatePoints(int userID, int pointsToAdd) throws Exception {
-		String updateString = "Update Users SET Points = Points ";
-		if (pointsToAdd > 0) {
-			updateString += "+";
-		} else {
-			updateString += "-";
-		}
-		updateString += " ? WHERE UserID = ?;";
-
-		PreparedStatement ptsStmt = null;
+	// Adds amounts written out by ScoreCounters, which may be negative. A
+	// user deleted since is skipped. Totals stop at the ends of the int
+	// range, as User.saturate does, since profiles are read back as ints.
+	public void addScores(int userID, long expToAdd, long pointsToAdd) throws Exception {
+		String updateString = "UPDATE Users SET Exp = MAX(-2147483648, MIN(2147483647, Exp + ?)), Points = MAX(-2147483648, MIN(2147483647, Points + ?)) WHERE UserID = ?;";
 
+		this.changedUsers.add(userID);
 		try {
-			ptsStmt = this.connection.prepareStatement(updateString);
-			ptsStmt.setInt(1, pointsToAdd);
-			ptsStmt.setInt(2, userID);
-
-			// TODO check this
-			if (ptsStmt.executeUpdate() == 0) {
-				throw new Exception("Database Error");
-			}
+			PreparedStatement scoreStmt = this.pooled.prepare(updateString);
+			scoreStmt.setLong(1, expToAdd);
+			scoreStmt.setLong(2, pointsToAdd);
+			scoreStmt.setInt(3, userID);
+			scoreStmt.executeUpdate();
 
 		} catch (SQLException e) {
 			System.out.println(e.getMessage());
 			throw new Exception("Database Error");
-		} finally {
-			try {
-				if (ptsStmt != null)
-					ptsStmt.close();
-			} catch (SQLException e) {
-				System.out.println(e.getMessage());
-				throw new Exception("Database Error");
-			}
 		}
 	}
 
 	public int addUser(String username, String password, String aboutMe, int age, String emailAddress)
 			throws Exception {
 
-		if (!isValidEmailAddress(emailAddress)) {
-			throw new Exception("This email address does not have a valid format.");
+		if (!Validators.isValidEmailAddress(emailAddress)) {
+			throw ValidationException.BAD_EMAIL;
 		}
 
-		if (!isValidAge(age)) {
-			throw new Exception("The age supplied is invalid.");
+		if (!Validators.isValidAge(age)) {
+			throw ValidationException.BAD_AGE;
 		}
 
-		if (!isValidUsername(username)) {
-			throw new Exception("This username does not have a valid format.");
+		if (!Validators.isValidUsername(username)) {
+			throw ValidationException.BAD_USERNAME;
 		}
 
 		String addString = "INSERT INTO Users (Username, PassWord, AboutMe, Age, EMailAddress, Exp, Points, Pic) VALUES (?,?,?,?,?,0,0,0);";
 		PreparedStatement addStmt = null;
 
 		try {
-			addStmt = this.connection.prepareStatement(addString, Statement.RETURN_GENERATED_KEYS);
+			addStmt = this.pooled.prepareWithKeys(addString);
 			addStmt.setString(1, username);
 			addStmt.setString(2, password);
 			addStmt.setString(3, aboutMe);
@@ -341,7 +636,9 @@ public class Database {
 			// http://stackoverflow.com/questions/1915166/how-to-get-the-insert-id-in-jdbc
 			ResultSet generatedKeys = addStmt.getGeneratedKeys();
 			if (generatedKeys.next()) {
-				return generatedKeys.getInt(1);
+				int userID = generatedKeys.getInt(1);
+				this.rankChanges.joined(userID);
+				return userID;
 			} else {
 				throw new SQLException("Creating user failed, no ID obtained.");
 			}
@@ -349,14 +646,6 @@ public class Database {
 		} catch (SQLException e) {
 			System.out.println(e.getMessage());
 			throw new Exception("Database Error");
-		} finally {
-			try {
-				if (addStmt != null)
-					addStmt.close();
-			} catch (SQLException e) {
-				System.out.println(e.getMessage());
-				throw new Exception("Database Error");
-			}
 		}
 	}
 
@@ -365,12 +654,13 @@ public class Database {
 		String updateString = "UPDATE Users SET PassWord = ?, AboutMe = ?, Age = ? WHERE UserID = ?;";
 		PreparedStatement updateStmt = null;
 
-		if (!isValidAge(age)) {
-			throw new Exception("The age supplied is invalid.");
+		if (!Validators.isValidAge(age)) {
+			throw ValidationException.BAD_AGE;
 		}
 
+		this.changedUsers.add(userID);
 		try {
-			updateStmt = this.connection.prepareStatement(updateString);
+			updateStmt = this.pooled.prepare(updateString);
 			updateStmt.setString(1, password);
 			updateStmt.setString(2, aboutMe);
 			updateStmt.setInt(3, age);
@@ -381,37 +671,76 @@ public class Database {
 				throw new Exception("Database Error");
 			}
 
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			throw new Exception("Database Error");
+		}
+
+	}
+
+	public String getPassword(int userID) throws Exception {
+		String getString = "SELECT PassWord FROM Users WHERE UserID = ?;";
+		ResultSet rs = null;
+
+		try {
+			PreparedStatement getStmt = this.pooled.prepare(getString);
+			getStmt.setInt(1, userID);
+
+			rs = getStmt.executeQuery();
+			if (!rs.next()) {
+				throw new Exception("User does not exist.");
+			}
+			return rs.getString("PassWord");
+
 		} catch (SQLException e) {
 			System.out.println(e.getMessage());
 			throw new Exception("Database Error");
 		} finally {
 			try {
-				if (updateStmt != null)
-					updateStmt.close();
+				if (rs != null)
+					rs.close();
 			} catch (SQLException e) {
 				System.out.println(e.getMessage());
 				throw new Exception("Database Error");
 			}
 		}
+	}
 
+	// Swaps the stored password for a new hash of the same password, unless
+	// it has been changed since oldPassword was read.
+	public void replacePassword(int userID, String oldPassword, String newPassword) throws Exception {
+		String updateString = "UPDATE Users SET PassWord = ? WHERE UserID = ? AND PassWord = ?;";
+
+		try {
+			PreparedStatement updateStmt = this.pooled.prepare(updateString);
+			updateStmt.setString(1, newPassword);
+			updateStmt.setInt(2, userID);
+			updateStmt.setString(3, oldPassword);
+			updateStmt.executeUpdate();
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			throw new Exception("Database Error");
+		}
 	}
 
 	// TODO make sure that you delete picture as well
 	public void deleteUser(int userID) throws Exception {
 		String deleteUserString = "DELETE FROM Users WHERE UserID = ?;";
 		String deleteMessageString = "DELETE FROM Messages WHERE FromUserID = ?;";
-		String updateMessageString = "UPDATE Messages SET MessageStatus = 'Failed' WHERE ToUserID = ?;";
+		String updateMessageString = "UPDATE Messages SET MessageStatus = 'Failed' WHERE ToUserID = ? AND MessageStatus = 'Undelivered';";
 
 		PreparedStatement delUsersStmt = null;
 		PreparedStatement delMsgsStmt = null;
 		PreparedStatement upMsgsStmt = null;
 
+		this.changedUsers.add(userID);
+		this.rankChanges.left(userID);
 		try {
-			delUsersStmt = this.connection.prepareStatement(deleteUserString);
+			delUsersStmt = this.pooled.prepare(deleteUserString);
 			delUsersStmt.setInt(1, userID);
-			delMsgsStmt = this.connection.prepareStatement(deleteMessageString);
+			delMsgsStmt = this.pooled.prepare(deleteMessageString);
 			delMsgsStmt.setInt(1, userID);
-			upMsgsStmt = this.connection.prepareStatement(updateMessageString);
+			upMsgsStmt = this.pooled.prepare(updateMessageString);
 			upMsgsStmt.setInt(1, userID);
 
 			// TODO check this
@@ -425,18 +754,6 @@ public class Database {
 		} catch (SQLException e) {
 			System.out.println(e.getMessage());
 			throw new Exception("Database Error");
-		} finally {
-			try {
-				if (delUsersStmt != null)
-					delUsersStmt.close();
-				if (delMsgsStmt != null)
-					delMsgsStmt.close();
-				if (upMsgsStmt != null)
-					upMsgsStmt.close();
-			} catch (SQLException e) {
-				System.out.println(e.getMessage());
-				throw new Exception("Database Error");
-			}
 		}
 	}
 
@@ -449,8 +766,9 @@ public class Database {
 
 		PreparedStatement updateStmt = null;
 
+		this.changedUsers.add(userID);
 		try {
-			updateStmt = this.connection.prepareStatement(updateString);
+			updateStmt = this.pooled.prepare(updateString);
 			updateStmt.setInt(1, pic);
 			updateStmt.setInt(2, userID);
 
@@ -462,27 +780,20 @@ public class Database {
 		} catch (SQLException e) {
 			System.out.println(e.getMessage());
 			throw new Exception("Database Error");
-		} finally {
-			try {
-				if (updateStmt != null)
-					updateStmt.close();
-			} catch (SQLException e) {
-				System.out.println(e.getMessage());
-				throw new Exception("Database Error");
-			}
 		}
 	}
 
 	// TODO throw error if user does not exist?
 	public int putMessage(int fromUserID, int toUserID, String contents) throws Exception {
-		String putString = "INSERT INTO Messages (FromUserID, ToUserID, Contents, MessageStatus) Values (?,?,?, 'Undelivered');";
+		String putString = "INSERT INTO Messages (FromUserID, ToUserID, Contents, MessageStatus, SentAt) Values (?,?,?, 'Undelivered', ?);";
 		PreparedStatement putStmt = null;
 
 		try {
-			putStmt = this.connection.prepareStatement(putString, Statement.RETURN_GENERATED_KEYS);
+			putStmt = this.pooled.prepareWithKeys(putString);
 			putStmt.setInt(1, fromUserID);
 			putStmt.setInt(2, toUserID);
 			putStmt.setString(3, contents);
+			putStmt.setLong(4, System.currentTimeMillis());
 
 			// TODO check this
 			if (putStmt.executeUpdate() == 0) {
@@ -498,28 +809,64 @@ public class Database {
 				throw new SQLException("Putting message failed, no ID obtained.");
 			}
 
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			throw new Exception("Database Error");
+		}
+	}
+
+	// Every message with the given status, for handing the Messages table
+	// over to the mailbox engine.
+	public ArrayList<Message> getMessagesByStatus(String status) throws Exception {
+		String getString = "SELECT MessageID, FromUserID, ToUserID, Contents FROM Messages WHERE MessageStatus = ?;";
+		ArrayList<Message> messages = new ArrayList<Message>();
+		ResultSet rs = null;
+
+		try {
+			PreparedStatement getStmt = this.pooled.prepare(getString);
+			getStmt.setString(1, status);
+
+			rs = getStmt.executeQuery();
+			while (rs.next()) {
+				messages.add(new Message(rs.getInt("MessageID"), rs.getInt("ToUserID"), rs.getInt("FromUserID"),
+						rs.getString("Contents")));
+			}
+
 		} catch (SQLException e) {
 			System.out.println(e.getMessage());
 			throw new Exception("Database Error");
 		} finally {
 			try {
-				if (putStmt != null)
-					putStmt.close();
+				if (rs != null)
+					rs.close();
 			} catch (SQLException e) {
 				System.out.println(e.getMessage());
 				throw new Exception("Database Error");
 			}
 		}
+		return messages;
 	}
 
+	public void deleteAllMessages() throws Exception {
+		try {
+			this.pooled.prepare("DELETE FROM Messages;").executeUpdate();
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			throw new Exception("Database Error");
+		}
+	}
+
+	// Always four statements, however many messages there are: the new
+	// messages are read and then all marked delivered together, and the
+	// results of the user's sent messages are read and then all marked
+	// acknowledged together, to be deleted later by MessageSweeper. Both
+	// pairs match the same rows, since nothing else can write in between.
 	public Update pullMessages(int userID) throws Exception {
 		String receivedString = "Select MessageID, FromUserId, ToUserID, Contents From Messages Where ToUserID = ? AND MessageStatus = 'Undelivered';";
-		String deliveredString = "Select MessageID, MessageStatus From Messages Where FromUserID = ? AND (MessageStatus = 'Delivered' OR MessageStatus = 'Failed');";
-
-		String updateReceivedString = "UPDATE Messages SET MessageStatus = 'Delivered' WHERE ";
-		String deleteDeliveredString = "DELETE FROM Messages Where ";
+		String deliveredString = "Select MessageID, MessageStatus From Messages Where FromUserID = ? AND MessageStatus IN ('Delivered', 'Failed');";
 
-		Update up = null;
+		String updateReceivedString = "UPDATE Messages SET MessageStatus = 'Delivered' WHERE ToUserID = ? AND MessageStatus = 'Undelivered';";
+		String ackDeliveredString = "UPDATE Messages SET MessageStatus = 'Acknowledged' WHERE FromUserID = ? AND MessageStatus IN ('Delivered', 'Failed');";
 
 		PreparedStatement recQueryStmt = null;
 		PreparedStatement delivQueryStmt = null;
@@ -527,20 +874,14 @@ public class Database {
 		PreparedStatement recUpdateStmt = null;
 		PreparedStatement delivUpdateStmt = null;
 
+		ArrayList<Message> messagesReceived = new ArrayList<Message>();
+		ArrayList<Integer> messagesDelivered = new ArrayList<Integer>();
+		ArrayList<Integer> messagesFailed = new ArrayList<Integer>();
+
 		try {
-			recQueryStmt = this.connection.prepareStatement(receivedString);
+			recQueryStmt = this.pooled.prepare(receivedString);
 			recQueryStmt.setInt(1, userID);
-			delivQueryStmt = this.connection.prepareStatement(deliveredString);
-			delivQueryStmt.setInt(1, userID);
-
-			ArrayList<Message> messagesReceived = new ArrayList<Message>();
-			ArrayList<Integer> messagesDelivered = new ArrayList<Integer>();
-			ArrayList<Integer> messagesFailed = new ArrayList<Integer>();
-
 			ResultSet recRS = recQueryStmt.executeQuery();
-			ResultSet delivRS = delivQueryStmt.executeQuery();
-
-			boolean firstRec = true;
 			while (recRS.next()) {
 				int msgID = recRS.getInt("MessageID");
 				int toID = recRS.getInt("ToUserID");
@@ -548,18 +889,12 @@ public class Database {
 				String contents = recRS.getString("Contents");
 
 				messagesReceived.add(new Message(msgID, toID, fromID, contents));
-
-				if (firstRec) {
-					firstRec = false;
-				} else {
-					updateReceivedString += " OR ";
-				}
-				updateReceivedString += " MessageID = " + msgID;
 			}
+			recRS.close();
 
-			updateReceivedString += ";";
-
-			boolean firstDeliv = true;
+			delivQueryStmt = this.pooled.prepare(deliveredString);
+			delivQueryStmt.setInt(1, userID);
+			ResultSet delivRS = delivQueryStmt.executeQuery();
 			while (delivRS.next()) {
 				int msgID = delivRS.getInt("MessageID");
 				if ((delivRS.getString("MessageStatus")).equals("Delivered")) {
@@ -567,72 +902,58 @@ public class Database {
 				} else {
 					messagesFailed.add(msgID);
 				}
-
-				if (firstDeliv) {
-					firstDeliv = false;
-				} else {
-					deleteDeliveredString += " OR ";
-				}
-				deleteDeliveredString += " MessageID = " + msgID;
 			}
+			delivRS.close();
 
-			deleteDeliveredString += ";";
+			if (!messagesDelivered.isEmpty() || !messagesFailed.isEmpty()) {
+				delivUpdateStmt = this.pooled.prepare(ackDeliveredString);
+				delivUpdateStmt.setInt(1, userID);
 
-			if (!firstDeliv) {
-				delivUpdateStmt = this.connection.prepareStatement(deleteDeliveredString);
-
-				// TODO check this
-				if (delivUpdateStmt.executeUpdate() == 0) {
+				if (delivUpdateStmt.executeUpdate() != messagesDelivered.size() + messagesFailed.size()) {
 					throw new Exception("Database Error");
 				}
 			}
 
-			if (!firstRec) {
-				recUpdateStmt = this.connection.prepareStatement(updateReceivedString);
+			if (!messagesReceived.isEmpty()) {
+				recUpdateStmt = this.pooled.prepare(updateReceivedString);
+				recUpdateStmt.setInt(1, userID);
 
-				// TODO check this
-				if (recUpdateStmt.executeUpdate() == 0) {
+				if (recUpdateStmt.executeUpdate() != messagesReceived.size()) {
 					throw new Exception("Database Error");
 				}
 			}
 
-			up = new Update(messagesReceived, messagesDelivered, messagesFailed);
-
 		} catch (SQLException e) {
 			System.out.println(e.getMessage());
 			throw new Exception("Database Error");
-		} finally {
-			try {
-				if (recQueryStmt != null)
-					recQueryStmt.close();
-				if (delivQueryStmt != null)
-					delivQueryStmt.close();
-				if (recUpdateStmt != null)
-					recUpdateStmt.close();
-				if (delivUpdateStmt != null)
-					delivUpdateStmt.close();
-			} catch (SQLException e) {
-				System.out.println(e.getMessage());
-				throw new Exception("Database Error");
-			}
 		}
-		return up;
+		return new Update(messagesReceived, messagesDelivered, messagesFailed);
 	}
 
-	// This REGEX was copied from a stack overflow post:
-	// http://stackoverflow.com/questions/8204680/java-regex-email
-	public boolean isValidEmailAddress(String emailAddress) {
-		Pattern emailPat = Pattern.compile(
-				"(?:(?:\\r\\n)?[ \\t])*(?:(?:(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\"(?:[^\\\"\\r\\\\]|\\\\.|(?:(?:\\r\\n)?[ \\t]))*\"(?:(?:\\r\\n)?[ \\t])*)(?:\\.(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\"(?:[^\\\"\\r\\\\]|\\\\.|(?:(?:\\r\\n)?[ \\t]))*\"(?:(?:\\r\\n)?[ \\t])*))*@(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\\[([^\\[\\]\\r\\\\]|\\\\.)*\\](?:(?:\\r\\n)?[ \\t])*)(?:\\.(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\\[([^\\[\\]\\r\\\\]|\\\\.)*\\](?:(?:\\r\\n)?[ \\t])*))*|(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\"(?:[^\\\"\\r\\\\]|\\\\.|(?:(?:\\r\\n)?[ \\t]))*\"(?:(?:\\r\\n)?[ \\t])*)*\\<(?:(?:\\r\\n)?[ \\t])*(?:@(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\\[([^\\[\\]\\r\\\\]|\\\\.)*\\](?:(?:\\r\\n)?[ \\t])*)(?:\\.(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\\[([^\\[\\]\\r\\\\]|\\\\.)*\\](?:(?:\\r\\n)?[ \\t])*))*(?:,@(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\\[([^\\[\\]\\r\\\\]|\\\\.)*\\](?:(?:\\r\\n)?[ \\t])*)(?:\\.(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\\[([^\\[\\]\\r\\\\]|\\\\.)*\\](?:(?:\\r\\n)?[ \\t])*))*)*:(?:(?:\\r\\n)?[ \\t])*)?(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\"(?:[^\\\"\\r\\\\]|\\\\.|(?:(?:\\r\\n)?[ \\t]))*\"(?:(?:\\r\\n)?[ \\t])*)(?:\\.(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\"(?:[^\\\"\\r\\\\]|\\\\.|(?:(?:\\r\\n)?[ \\t]))*\"(?:(?:\\r\\n)?[ \\t])*))*@(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\\[([^\\[\\]\\r\\\\]|\\\\.)*\\](?:(?:\\r\\n)?[ \\t])*)(?:\\.(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\\[([^\\[\\]\\r\\\\]|\\\\.)*\\](?:(?:\\r\\n)?[ \\t])*))*\\>(?:(?:\\r\\n)?[ \\t])*)|(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\"(?:[^\\\"\\r\\\\]|\\\\.|(?:(?:\\r\\n)?[ \\t]))*\"(?:(?:\\r\\n)?[ \\t])*)*:(?:(?:\\r\\n)?[ \\t])*(?:(?:(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\"(?:[^\\\"\\r\\\\]|\\\\.|(?:(?:\\r\\n)?[ \\t]))*\"(?:(?:\\r\\n)?[ \\t])*)(?:\\.(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\"(?:[^\\\"\\r\\\\]|\\\\.|(?:(?:\\r\\n)?[ \\t]))*\"(?:(?:\\r\\n)?[ \\t])*))*@(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\\[([^\\[\\]\\r\\\\]|\\\\.)*\\](?:(?:\\r\\n)?[ \\t])*)(?:\\.(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\\[([^\\[\\]\\r\\\\]|\\\\.)*\\](?:(?:\\r\\n)?[ \\t])*))*|(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\"(?:[^\\\"\\r\\\\]|\\\\.|(?:(?:\\r\\n)?[ \\t]))*\"(?:(?:\\r\\n)?[ \\t])*)*\\<(?:(?:\\r\\n)?[ \\t])*(?:@(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\\[([^\\[\\]\\r\\\\]|\\\\.)*\\](?:(?:\\r\\n)?[ \\t])*)(?:\\.(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\\[([^\\[\\]\\r\\\\]|\\\\.)*\\](?:(?:\\r\\n)?[ \\t])*))*(?:,@(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\\[([^\\[\\]\\r\\\\]|\\\\.)*\\](?:(?:\\r\\n)?[ \\t])*)(?:\\.(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\\[([^\\[\\]\\r\\\\]|\\\\.)*\\](?:(?:\\r\\n)?[ \\t])*))*)*:(?:(?:\\r\\n)?[ \\t])*)?(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\"(?:[^\\\"\\r\\\\]|\\\\.|(?:(?:\\r\\n)?[ \\t]))*\"(?:(?:\\r\\n)?[ \\t])*)(?:\\.(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\"(?:[^\\\"\\r\\\\]|\\\\.|(?:(?:\\r\\n)?[ \\t]))*\"(?:(?:\\r\\n)?[ \\t])*))*@(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\\[([^\\[\\]\\r\\\\]|\\\\.)*\\](?:(?:\\r\\n)?[ \\t])*)(?:\\.(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\\[([^\\[\\]\\r\\\\]|\\\\.)*\\](?:(?:\\r\\n)?[ \\t])*))*\\>(?:(?:\\r\\n)?[ \\t])*)(?:,\\s*(?:(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\"(?:[^\\\"\\r\\\\]|\\\\.|(?:(?:\\r\\n)?[ \\t]))*\"(?:(?:\\r\\n)?[ \\t])*)(?:\\.(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\"(?:[^\\\"\\r\\\\]|\\\\.|(?:(?:\\r\\n)?[ \\t]))*\"(?:(?:\\r\\n)?[ \\t])*))*@(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\\[([^\\[\\]\\r\\\\]|\\\\.)*\\](?:(?:\\r\\n)?[ \\t])*)(?:\\.(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\\[([^\\[\\]\\r\\\\]|\\\\.)*\\](?:(?:\\r\\n)?[ \\t])*))*|(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\"(?:[^\\\"\\r\\\\]|\\\\.|(?:(?:\\r\\n)?[ \\t]))*\"(?:(?:\\r\\n)?[ \\t])*)*\\<(?:(?:\\r\\n)?[ \\t])*(?:@(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\\[([^\\[\\]\\r\\\\]|\\\\.)*\\](?:(?:\\r\\n)?[ \\t])*)(?:\\.(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\\[([^\\[\\]\\r\\\\]|\\\\.)*\\](?:(?:\\r\\n)?[ \\t])*))*(?:,@(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\\[([^\\[\\]\\r\\\\]|\\\\.)*\\](?:(?:\\r\\n)?[ \\t])*)(?:\\.(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\\[([^\\[\\]\\r\\\\]|\\\\.)*\\](?:(?:\\r\\n)?[ \\t])*))*)*:(?:(?:\\r\\n)?[ \\t])*)?(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\"(?:[^\\\"\\r\\\\]|\\\\.|(?:(?:\\r\\n)?[ \\t]))*\"(?:(?:\\r\\n)?[ \\t])*)(?:\\.(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\"(?:[^\\\"\\r\\\\]|\\\\.|(?:(?:\\r\\n)?[ \\t]))*\"(?:(?:\\r\\n)?[ \\t])*))*@(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\\[([^\\[\\]\\r\\\\]|\\\\.)*\\](?:(?:\\r\\n)?[ \\t])*)(?:\\.(?:(?:\\r\\n)?[ \\t])*(?:[^()<>@,;:\\\\\".\\[\\] \\000-\\031]+(?:(?:(?:\\r\\n)?[ \\t])+|\\Z|(?=[\\[\"()<>@,;:\\\\\".\\[\\]]))|\\[([^\\[\\]\\r\\\\]|\\\\.)*\\](?:(?:\\r\\n)?[ \\t])*))*\\>(?:(?:\\r\\n)?[ \\t])*))*)?;\\s*)");
-		return emailPat.matcher(emailAddress).matches();
-	}
+	public int expireMessages(long sentBefore, int limit) throws Exception {
+		String expireString = "UPDATE Messages SET MessageStatus = 'Failed' WHERE MessageID IN (SELECT MessageID FROM Messages WHERE MessageStatus = 'Undelivered' AND SentAt < ? LIMIT ?);";
 
-	public boolean isValidUsername(String username) {
-		Pattern usrPat = Pattern.compile("^[a-z][a-z0-9_-]{4,15}$");
-		return usrPat.matcher(username).matches();
+		try {
+			PreparedStatement expireStmt = this.pooled.prepare(expireString);
+			expireStmt.setLong(1, sentBefore);
+			expireStmt.setInt(2, limit);
+			return expireStmt.executeUpdate();
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			throw new Exception("Database Error");
+		}
 	}
 
-	public boolean isValidAge(int age) {
-		return age > 5 && age < 115;
+	public int deleteAcknowledgedMessages(int limit) throws Exception {
+		String deleteString = "DELETE FROM Messages WHERE MessageID IN (SELECT MessageID FROM Messages WHERE MessageStatus = 'Acknowledged' LIMIT ?);";
+
+		try {
+			PreparedStatement deleteStmt = this.pooled.prepare(deleteString);
+			deleteStmt.setInt(1, limit);
+			return deleteStmt.executeUpdate();
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			throw new Exception("Database Error");
+		}
 	}
 }
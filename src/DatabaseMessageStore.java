@@ -0,0 +1,57 @@
+// Keeps messages in the storage engine, the Messages table for SQLite,
+// with every change going through the group committed WriteQueue.
+public class DatabaseMessageStore implements MessageStore {
+	private WriteQueue writeQueue;
+
+	public DatabaseMessageStore(WriteQueue writeQueue) {
+		this.writeQueue = writeQueue;
+	}
+
+	@Override
+	public int send(final int fromUserID, final int toUserID, final String contents) throws Exception {
+		return this.writeQueue.submit(new WriteQueue.Write<Integer>() {
+			@Override
+			public Integer apply(Storage db) throws Exception {
+				return db.putMessage(fromUserID, toUserID, contents);
+			}
+		}).get();
+	}
+
+	@Override
+	public Update pull(final int userID) throws Exception {
+		return this.writeQueue.submit(new WriteQueue.Write<Update>() {
+			@Override
+			public Update apply(Storage db) throws Exception {
+				return db.pullMessages(userID);
+			}
+		}).get();
+	}
+
+	// Storage.deleteUser already takes care of the user's messages, in the
+	// same transaction as the user.
+	@Override
+	public void removeUser(int userID) {
+	}
+
+	// Sweeps share a batch with whatever else is waiting to be written,
+	// rather than holding the writer connection to themselves.
+	@Override
+	public int expire(final long sentBefore, final int limit) throws Exception {
+		return this.writeQueue.submit(new WriteQueue.Write<Integer>() {
+			@Override
+			public Integer apply(Storage db) throws Exception {
+				return db.expireMessages(sentBefore, limit);
+			}
+		}).get();
+	}
+
+	@Override
+	public int purge(final int limit) throws Exception {
+		return this.writeQueue.submit(new WriteQueue.Write<Integer>() {
+			@Override
+			public Integer apply(Storage db) throws Exception {
+				return db.deleteAcknowledgedMessages(limit);
+			}
+		}).get();
+	}
+}
@@ -0,0 +1,176 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A fixed grid of cells over latitude and longitude that is kept up to date
+// on every heartbeat. Each cell holds the users currently inside it, so a
+// search only has to look at the cells that overlap the search circle. A
+// cell is dropped once its last user leaves, so the grid only ever holds
+// the cells someone is in.
+public class GeoGrid {
+	// Roughly 1.1km of latitude per cell.
+	private static final double CELL_SIZE = 0.01;
+	private static final int COLUMNS = (int) Math.ceil(360 / CELL_SIZE);
+	private static final int LOCK_STRIPES = 64;
+
+	private ConcurrentHashMap<Long, PresenceTable> cells = new ConcurrentHashMap<Long, PresenceTable>();
+	private ConcurrentHashMap<Integer, Long> userCells = new ConcurrentHashMap<Integer, Long>();
+
+	// Two heartbeats from the same user must not interleave, or they could
+	// leave the user behind in two cells at once.
+	private Object[] locks = new Object[LOCK_STRIPES];
+
+	public GeoGrid() {
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			this.locks[i] = new Object();
+		}
+	}
+
+	public void update(int userID, double lat, double lon, int age, boolean hasPic) {
+		long key = cellKey(row(lat), column(lon));
+		synchronized (this.locks[userID & (LOCK_STRIPES - 1)]) {
+			Long old = this.userCells.put(userID, key);
+			if (old != null && old != key) {
+				this.leave(old, userID);
+			}
+			while (true) {
+				PresenceTable cell = this.cells.get(key);
+				if (cell == null) {
+					PresenceTable fresh = new PresenceTable();
+					cell = this.cells.putIfAbsent(key, fresh);
+					if (cell == null) {
+						cell = fresh;
+					}
+				}
+				// a cell that emptied and was dropped in the meantime is
+				// no good, so go round for a new one
+				synchronized (cell) {
+					if (this.cells.get(key) == cell) {
+						cell.put(userID, lat, lon, 0, age, hasPic);
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	public void remove(int userID) {
+		synchronized (this.locks[userID & (LOCK_STRIPES - 1)]) {
+			Long old = this.userCells.remove(userID);
+			if (old != null) {
+				this.leave(old, userID);
+			}
+		}
+	}
+
+	// Takes the user out of their cell, and drops the cell if that leaves it
+	// empty. Users of other lock stripes can be moving into the same cell,
+	// so this holds the cell's own lock as well, which update takes before
+	// putting anyone in a cell.
+	private void leave(long key, int userID) {
+		PresenceTable cell = this.cells.get(key);
+		synchronized (cell) {
+			cell.remove(userID);
+			if (cell.size() == 0) {
+				this.cells.remove(key, cell);
+			}
+		}
+	}
+
+	// Offers the users around near's point to it, one ring of cells at a
+	// time working outwards, and stops once a whole ring lies outside the
+	// search box, which shrinks as closer users are found. Cells that lie
+	// wholly before where near starts are skipped.
+	public void nearest(NearestUsers near) {
+		double lat = near.getLat();
+		double lon = near.getLon();
+
+		int minRow = row(Math.max(-90, lat - near.getLatSpan()));
+		int maxRow = row(Math.min(90, lat + near.getLatSpan()));
+		long boxCells = (long) (maxRow - minRow + 1) * (long) Math.ceil(2 * near.getLonSpan() / CELL_SIZE + 1);
+
+		// Rings don't wrap around the date line, and for very wide searches
+		// walking the occupied cells is cheaper anyway.
+		if (near.getLonSpan() >= 180 || boxCells > this.cells.size()) {
+			for (Map.Entry<Long, PresenceTable> cell : this.cells.entrySet()) {
+				long key = cell.getKey();
+				if (!before(near, (int) (key >>> 32), (int) key)) {
+					cell.getValue().nearest(near);
+				}
+			}
+			return;
+		}
+
+		int centerRow = row(lat);
+		int centerCol = column(lon);
+		for (int ring = 0;; ring++) {
+			// A cell in this ring is at least ring - 1 whole cells away from
+			// the point along one of the axes.
+			double gap = (ring - 1) * CELL_SIZE;
+			if (gap > near.getLatSpan() && gap > near.getLonSpan()) {
+				return;
+			}
+			for (int row = centerRow - ring; row <= centerRow + ring; row++) {
+				boolean edgeRow = row == centerRow - ring || row == centerRow + ring;
+				int step = edgeRow ? 1 : 2 * ring;
+				for (int col = centerCol - ring; col <= centerCol + ring; col += Math.max(step, 1)) {
+					PresenceTable cell = this.cells.get(cellKey(row, col));
+					if (cell != null && !before(near, row, col)) {
+						cell.nearest(near);
+					}
+				}
+			}
+		}
+	}
+
+	// Returns a copy of every user in the cells that overlap the box of dist
+	// meters around the point, as a tree that later pages of a search from
+	// there can go through without the users moving under them.
+	public KDTree copyNear(double lat, double lon, int dist) {
+		double latSpan = UserProximityManager.latitudeSpan(dist);
+		double lonSpan = UserProximityManager.longitudeSpan(lat, lon, dist);
+		int minRow = row(Math.max(-90, lat - latSpan));
+		int maxRow = row(Math.min(90, lat + latSpan));
+		int minCol = lonSpan >= 180 ? 0 : column(lon - lonSpan);
+		int maxCol = lonSpan >= 180 ? COLUMNS - 1 : column(lon + lonSpan);
+		long boxCells = (long) (maxRow - minRow + 1) * (maxCol - minCol + 1);
+
+		PresenceTable copy = new PresenceTable();
+		if (boxCells > this.cells.size()) {
+			for (Map.Entry<Long, PresenceTable> cell : this.cells.entrySet()) {
+				int row = (int) (cell.getKey() >>> 32);
+				int col = (int) (long) cell.getKey();
+				if (row >= minRow && row <= maxRow && col >= minCol && col <= maxCol) {
+					cell.getValue().copyInto(copy);
+				}
+			}
+		} else {
+			for (int row = minRow; row <= maxRow; row++) {
+				for (int col = minCol; col <= maxCol; col++) {
+					PresenceTable cell = this.cells.get(cellKey(row, col));
+					if (cell != null) {
+						cell.copyInto(copy);
+					}
+				}
+			}
+		}
+		return copy.buildTree();
+	}
+
+	private static boolean before(NearestUsers near, int row, int col) {
+		double minLat = row * CELL_SIZE - 90;
+		double minLon = col * CELL_SIZE - 180;
+		return near.before(minLat, minLat + CELL_SIZE, minLon, minLon + CELL_SIZE);
+	}
+
+	private static int row(double lat) {
+		return (int) Math.floor((lat + 90) / CELL_SIZE);
+	}
+
+	private static int column(double lon) {
+		return Math.min(COLUMNS - 1, (int) Math.floor((lon + 180) / CELL_SIZE));
+	}
+
+	private static long cellKey(int row, int col) {
+		return ((long) row << 32) | col;
+	}
+}
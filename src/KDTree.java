@@ -0,0 +1,164 @@
+import java.util.Random;
+
+// A balanced, immutable 2d tree of user positions. The tree is stored
+// implicitly in three parallel arrays: the node for the range [lo, hi) sits at
+// the middle index, and its children are the two halves on either side of it.
+// Even depths split on latitude, odd depths split on longitude.
+// Each node also knows the box its whole subtree fits in, so that a search
+// carrying on from an earlier page can skip subtrees it has already covered.
+public class KDTree {
+	private int[] ids;
+	private double[] lats;
+	private double[] lons;
+	private int[] ages;
+	private boolean[] pics;
+	// the box around each node's subtree, kept at the node's index
+	private double[] minLats;
+	private double[] maxLats;
+	private double[] minLons;
+	private double[] maxLons;
+	private int size;
+	private Random rand = new Random();
+
+	public KDTree() {
+		this(new int[0], new double[0], new double[0], new int[0], new boolean[0], 0);
+	}
+
+	// The arrays are copied, so the caller is free to reuse them afterwards.
+	public KDTree(int[] ids, double[] lats, double[] lons, int[] ages, boolean[] pics, int size) {
+		this.size = size;
+		this.ids = new int[size];
+		this.lats = new double[size];
+		this.lons = new double[size];
+		this.ages = new int[size];
+		this.pics = new boolean[size];
+		System.arraycopy(ids, 0, this.ids, 0, size);
+		System.arraycopy(lats, 0, this.lats, 0, size);
+		System.arraycopy(lons, 0, this.lons, 0, size);
+		System.arraycopy(ages, 0, this.ages, 0, size);
+		System.arraycopy(pics, 0, this.pics, 0, size);
+		this.minLats = new double[size];
+		this.maxLats = new double[size];
+		this.minLons = new double[size];
+		this.maxLons = new double[size];
+		this.build(0, size, 0);
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	// Offers the users in the tree to near, visiting the side of each
+	// splitting plane that holds the point first, and skipping the other side
+	// once it lies outside the shrinking search box. Subtrees that lie
+	// wholly before where near starts are skipped too.
+	public void nearest(NearestUsers near) {
+		this.nearest(0, this.size, 0, near);
+	}
+
+	private void nearest(int lo, int hi, int depth, NearestUsers near) {
+		if (lo >= hi) {
+			return;
+		}
+
+		int mid = (lo + hi) >>> 1;
+		if (near.before(this.minLats[mid], this.maxLats[mid], this.minLons[mid], this.maxLons[mid])) {
+			return;
+		}
+		near.offer(this.ids[mid], this.lats[mid], this.lons[mid], this.ages[mid], this.pics[mid]);
+
+		boolean byLat = depth % 2 == 0;
+		double diff = byLat ? near.getLat() - this.lats[mid] : near.getLon() - this.lons[mid];
+
+		if (diff < 0) {
+			this.nearest(lo, mid, depth + 1, near);
+			if (-diff <= (byLat ? near.getLatSpan() : near.getLonSpan())) {
+				this.nearest(mid + 1, hi, depth + 1, near);
+			}
+		} else {
+			this.nearest(mid + 1, hi, depth + 1, near);
+			if (diff <= (byLat ? near.getLatSpan() : near.getLonSpan())) {
+				this.nearest(lo, mid, depth + 1, near);
+			}
+		}
+	}
+
+	private void build(int lo, int hi, int depth) {
+		if (lo >= hi) {
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		if (hi - lo > 1) {
+			this.select(lo, hi - 1, mid, depth % 2 == 0);
+			this.build(lo, mid, depth + 1);
+			this.build(mid + 1, hi, depth + 1);
+		}
+
+		this.minLats[mid] = this.maxLats[mid] = this.lats[mid];
+		this.minLons[mid] = this.maxLons[mid] = this.lons[mid];
+		this.widen(mid, lo, mid);
+		this.widen(mid, mid + 1, hi);
+	}
+
+	// Widens the box of the node at i to take in the subtree [lo, hi).
+	private void widen(int i, int lo, int hi) {
+		if (lo >= hi) {
+			return;
+		}
+		int child = (lo + hi) >>> 1;
+		this.minLats[i] = Math.min(this.minLats[i], this.minLats[child]);
+		this.maxLats[i] = Math.max(this.maxLats[i], this.maxLats[child]);
+		this.minLons[i] = Math.min(this.minLons[i], this.minLons[child]);
+		this.maxLons[i] = Math.max(this.maxLons[i], this.maxLons[child]);
+	}
+
+	// Quickselect with a three way partition, so that many users sharing the
+	// exact same coordinates don't degrade the build to quadratic time.
+	private void select(int lo, int hi, int k, boolean byLat) {
+		while (lo < hi) {
+			double pivot = this.key(lo + this.rand.nextInt(hi - lo + 1), byLat);
+			int lt = lo;
+			int gt = hi;
+			int i = lo;
+			while (i <= gt) {
+				double cur = this.key(i, byLat);
+				if (cur < pivot) {
+					this.swap(lt++, i++);
+				} else if (cur > pivot) {
+					this.swap(i, gt--);
+				} else {
+					i++;
+				}
+			}
+			if (k < lt) {
+				hi = lt - 1;
+			} else if (k > gt) {
+				lo = gt + 1;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private double key(int i, boolean byLat) {
+		return byLat ? this.lats[i] : this.lons[i];
+	}
+
+	private void swap(int a, int b) {
+		int id = this.ids[a];
+		this.ids[a] = this.ids[b];
+		this.ids[b] = id;
+		double lat = this.lats[a];
+		this.lats[a] = this.lats[b];
+		this.lats[b] = lat;
+		double lon = this.lons[a];
+		this.lons[a] = this.lons[b];
+		this.lons[b] = lon;
+		int age = this.ages[a];
+		this.ages[a] = this.ages[b];
+		this.ages[b] = age;
+		boolean pic = this.pics[a];
+		this.pics[a] = this.pics[b];
+		this.pics[b] = pic;
+	}
+}
@@ -0,0 +1,37 @@
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+// Times the requests passing through it, so that background work can tell
+// when it's slowing them down and back off.
+public class LatencyFilter extends Filter {
+	private AtomicLong requests = new AtomicLong();
+	private AtomicLong totalNanos = new AtomicLong();
+
+	@Override
+	public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+		long start = System.nanoTime();
+		try {
+			chain.doFilter(exchange);
+		} finally {
+			this.totalNanos.addAndGet(System.nanoTime() - start);
+			this.requests.incrementAndGet();
+		}
+	}
+
+	@Override
+	public String description() {
+		return "Times requests";
+	}
+
+	// Returns the average time taken by the requests finished since the
+	// last call, in microseconds, or 0 if there were none. A request that
+	// finishes during the call may be counted in either.
+	public long takeAverageMicros() {
+		long count = this.requests.getAndSet(0);
+		long nanos = this.totalNanos.getAndSet(0);
+		return count == 0 ? 0 : nanos / count / 1000;
+	}
+}
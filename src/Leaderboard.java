@@ -0,0 +1,211 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+// Every user's points, kept in order so that the top users and any one
+// user's rank can be found without sorting the Users table.
+// It's an indexable skip list: each link also records how many users it
+// skips over, so a rank is the sum of the links followed to reach the user,
+// and both that and an update take logarithmic time.
+// Users are ordered by points, highest first, and then by userID.
+public class Leaderboard {
+	public static final int DEFAULT_RESULTS = 10;
+	public static final int MAX_RESULTS = 100;
+	private static final int MAX_LEVEL = 32;
+
+	private Node head = new Node(0, 0, MAX_LEVEL);
+	private int level = 1;
+	private int size = 0;
+	private HashMap<Integer, Node> nodes = new HashMap<Integer, Node>();
+	private Random random = new Random();
+
+	private static class Node {
+		private int userID;
+		private long points;
+		private Node[] next;
+		// how many users next[i] is along from here, or for the last link
+		// on a level, how many users there are after this one
+		private int[] width;
+
+		private Node(int userID, long points, int levels) {
+			this.userID = userID;
+			this.points = points;
+			this.next = new Node[levels];
+			this.width = new int[levels];
+		}
+	}
+
+	// Adds the user, or moves them if they are already on the board.
+	public synchronized void set(int userID, long points) {
+		Node old = this.nodes.get(userID);
+		if (old != null) {
+			if (old.points == points) {
+				return;
+			}
+			this.delete(old);
+		}
+		this.nodes.put(userID, this.insert(userID, points));
+	}
+
+	// Adds to a user's points. Users who aren't on the board, say because
+	// they were just deleted, are left off.
+	public synchronized void add(int userID, long points) {
+		Node old = this.nodes.get(userID);
+		if (old != null && points != 0) {
+			this.delete(old);
+			this.nodes.put(userID, this.insert(userID, old.points + points));
+		}
+	}
+
+	public synchronized void remove(int userID) {
+		Node old = this.nodes.remove(userID);
+		if (old != null) {
+			this.delete(old);
+		}
+	}
+
+	public synchronized void clear() {
+		this.head = new Node(0, 0, MAX_LEVEL);
+		this.level = 1;
+		this.size = 0;
+		this.nodes.clear();
+	}
+
+	public synchronized int size() {
+		return this.size;
+	}
+
+	// Returns the user's place, starting from 1, or 0 if they aren't on the
+	// board.
+	public synchronized int rank(int userID) {
+		Node target = this.nodes.get(userID);
+		if (target == null) {
+			return 0;
+		}
+		Node x = this.head;
+		int rank = 0;
+		for (int i = this.level - 1; i >= 0; i--) {
+			while (x.next[i] != null && !before(target, x.next[i])) {
+				rank += x.width[i];
+				x = x.next[i];
+			}
+			if (x == target) {
+				return rank;
+			}
+		}
+		return 0;
+	}
+
+	// Returns the IDs of the n users with the most points, best first.
+	public synchronized ArrayList<Integer> top(int n) {
+		ArrayList<Integer> userIDs = new ArrayList<Integer>(Math.min(n, this.size));
+		for (Node x = this.head.next[0]; x != null && userIDs.size() < n; x = x.next[0]) {
+			userIDs.add(x.userID);
+		}
+		return userIDs;
+	}
+
+	// Puts the given users in leaderboard order, leaving out any who aren't
+	// on it.
+	public ArrayList<Integer> rankAmong(List<Integer> userIDs) {
+		final HashMap<Integer, Long> points = new HashMap<Integer, Long>();
+		synchronized (this) {
+			for (Integer userID : userIDs) {
+				Node x = this.nodes.get(userID);
+				if (x != null) {
+					points.put(userID, x.points);
+				}
+			}
+		}
+		ArrayList<Integer> ranked = new ArrayList<Integer>(points.keySet());
+		Collections.sort(ranked, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int byPoints = Long.compare(points.get(b), points.get(a));
+				return byPoints != 0 ? byPoints : Integer.compare(a, b);
+			}
+		});
+		return ranked;
+	}
+
+	// Whether a comes before b on the board.
+	private static boolean before(Node a, Node b) {
+		return a.points > b.points || (a.points == b.points && a.userID < b.userID);
+	}
+
+	private Node insert(int userID, long points) {
+		Node node = new Node(userID, points, this.randomLevel());
+		Node[] update = new Node[MAX_LEVEL];
+		// how far along each of update is
+		int[] rank = new int[MAX_LEVEL];
+
+		Node x = this.head;
+		for (int i = this.level - 1; i >= 0; i--) {
+			rank[i] = i == this.level - 1 ? 0 : rank[i + 1];
+			while (x.next[i] != null && before(x.next[i], node)) {
+				rank[i] += x.width[i];
+				x = x.next[i];
+			}
+			update[i] = x;
+		}
+
+		int levels = node.next.length;
+		if (levels > this.level) {
+			for (int i = this.level; i < levels; i++) {
+				rank[i] = 0;
+				update[i] = this.head;
+				this.head.width[i] = this.size;
+			}
+			this.level = levels;
+		}
+
+		for (int i = 0; i < levels; i++) {
+			node.next[i] = update[i].next[i];
+			update[i].next[i] = node;
+			node.width[i] = update[i].width[i] - (rank[0] - rank[i]);
+			update[i].width[i] = rank[0] - rank[i] + 1;
+		}
+		// the links above the new node now pass over it too
+		for (int i = levels; i < this.level; i++) {
+			update[i].width[i]++;
+		}
+		this.size++;
+		return node;
+	}
+
+	private void delete(Node target) {
+		Node[] update = new Node[MAX_LEVEL];
+		Node x = this.head;
+		for (int i = this.level - 1; i >= 0; i--) {
+			while (x.next[i] != null && before(x.next[i], target)) {
+				x = x.next[i];
+			}
+			update[i] = x;
+		}
+
+		for (int i = 0; i < this.level; i++) {
+			if (update[i].next[i] == target) {
+				update[i].width[i] += target.width[i] - 1;
+				update[i].next[i] = target.next[i];
+			} else {
+				update[i].width[i]--;
+			}
+		}
+		while (this.level > 1 && this.head.next[this.level - 1] == null) {
+			this.level--;
+		}
+		this.size--;
+	}
+
+	// Each level up holds a quarter as many users as the one below.
+	private int randomLevel() {
+		int levels = 1;
+		while (levels < MAX_LEVEL && this.random.nextInt(4) == 0) {
+			levels++;
+		}
+		return levels;
+	}
+}
@@ -0,0 +1,44 @@
+import java.util.ArrayList;
+
+// The changes a transaction makes to who is on the leaderboard, held back
+// until it commits. A savepoint marks how many there were, so that rolling
+// back to it drops the ones made since. Points go on the leaderboard
+// through ScoreCounters instead.
+public class LeaderboardChanges {
+	private ArrayList<Integer> joinedUsers = new ArrayList<Integer>();
+	private ArrayList<Integer> leftUsers = new ArrayList<Integer>();
+	private int[] mark;
+
+	public void joined(int userID) {
+		this.joinedUsers.add(userID);
+	}
+
+	public void left(int userID) {
+		this.leftUsers.add(userID);
+	}
+
+	public void mark() {
+		this.mark = new int[] { this.joinedUsers.size(), this.leftUsers.size() };
+	}
+
+	public void rollbackToMark() {
+		this.joinedUsers.subList(this.mark[0], this.joinedUsers.size()).clear();
+		this.leftUsers.subList(this.mark[1], this.leftUsers.size()).clear();
+	}
+
+	// To be called once the transaction has committed.
+	public void apply(Leaderboard leaderboard) {
+		for (Integer userID : this.joinedUsers) {
+			leaderboard.set(userID, 0);
+		}
+		for (Integer userID : this.leftUsers) {
+			leaderboard.remove(userID);
+		}
+		this.clear();
+	}
+
+	public void clear() {
+		this.joinedUsers.clear();
+		this.leftUsers.clear();
+	}
+}
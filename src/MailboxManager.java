@@ -0,0 +1,371 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Keeps undelivered messages in memory, in a mailbox per recipient, along
+// with the delivered and failed receipts waiting for each sender, so that a
+// heartbeat with nothing waiting never touches the disk.
+// Every change is also appended to a MessageLog, which is replayed on
+// startup. Sends are synced before they are acknowledged. Pulls are not, so
+// after a crash a few messages may be delivered a second time, with the
+// same IDs. Messages that wait too long are failed by MessageSweeper.
+public class MailboxManager implements MessageStore, Runnable {
+	private static final int COMPACT_INTERVAL = 60000;
+	// The log is rewritten once it holds this many more records than it
+	// would after compaction, and at least twice as many.
+	private static final int COMPACT_SLACK = 10000;
+
+	// record types. SEND is only found in logs from before SEND_AT, and its
+	// messages count as sent when the log is loaded.
+	private static final byte SEND = 1;
+	private static final byte PULL = 2;
+	private static final byte REMOVE_USER = 3;
+	// only written by compaction
+	private static final byte NEXT_ID = 4;
+	private static final byte RECEIPT = 5;
+	private static final byte SEND_AT = 6;
+	private static final byte EXPIRE = 7;
+
+	private MessageLog log;
+
+	private HashMap<Integer, ArrayList<Message>> mailboxes = new HashMap<Integer, ArrayList<Message>>();
+	private HashMap<Integer, Receipts> receipts = new HashMap<Integer, Receipts>();
+	// every message in a mailbox, by ID, oldest first
+	private LinkedHashMap<Integer, Waiting> waiting = new LinkedHashMap<Integer, Waiting>();
+	private int nextID = 1;
+
+	// how many records the log holds, and how many it would hold if it was
+	// compacted now
+	private long logRecords;
+	private long liveRecords;
+
+	private static class Waiting {
+		private Message msg;
+		private long sentAt;
+
+		private Waiting(Message msg, long sentAt) {
+			this.msg = msg;
+			this.sentAt = sentAt;
+		}
+	}
+
+	private static class Receipts {
+		private ArrayList<Integer> delivered = new ArrayList<Integer>();
+		private ArrayList<Integer> failed = new ArrayList<Integer>();
+	}
+
+	public MailboxManager(String logFile) {
+		this.log = new MessageLog(new File(logFile));
+	}
+
+	// Whether there is a log to load, rather than a first start.
+	public boolean hasLog() {
+		return this.log.exists();
+	}
+
+	// Replays the log, then compacts it, which also drops whatever a crash
+	// left half written at the end. Returns how many messages are waiting.
+	public synchronized int load() throws IOException {
+		ArrayList<byte[]> records = this.log.replay();
+		for (byte[] record : records) {
+			this.replay(record);
+		}
+		this.compact();
+		return this.countMessages();
+	}
+
+	// Takes over the messages left in the Messages table by the database
+	// engine, on the first start with this one.
+	public synchronized void importMessages(ArrayList<Message> undelivered, ArrayList<Message> delivered,
+			ArrayList<Message> failed) throws IOException {
+		long now = System.currentTimeMillis();
+		for (Message msg : undelivered) {
+			this.deliverTo(msg, now);
+			this.nextID = Math.max(this.nextID, msg.getMessageID() + 1);
+		}
+		for (Message msg : delivered) {
+			this.receiptsFor(msg.getFromUserID()).delivered.add(msg.getMessageID());
+			this.nextID = Math.max(this.nextID, msg.getMessageID() + 1);
+		}
+		for (Message msg : failed) {
+			this.receiptsFor(msg.getFromUserID()).failed.add(msg.getMessageID());
+			this.nextID = Math.max(this.nextID, msg.getMessageID() + 1);
+		}
+		this.compact();
+	}
+
+	@Override
+	public int send(int fromUserID, int toUserID, String contents) throws Exception {
+		int msgID;
+		long seq;
+		synchronized (this) {
+			msgID = this.nextID++;
+			Message msg = new Message(msgID, toUserID, fromUserID, contents);
+			long sentAt = System.currentTimeMillis();
+			// logged first, so a message that can't be logged is never
+			// delivered
+			seq = this.append(sendRecord(msg, sentAt));
+			this.deliverTo(msg, sentAt);
+		}
+		this.log.sync(seq);
+		return msgID;
+	}
+
+	@Override
+	public Update pull(int userID) throws Exception {
+		synchronized (this) {
+			if (!this.mailboxes.containsKey(userID) && !this.receipts.containsKey(userID)) {
+				return new Update(new ArrayList<Message>(), new ArrayList<Integer>(), new ArrayList<Integer>());
+			}
+			Update up = this.takeAll(userID);
+			this.append(idRecord(PULL, userID));
+			return up;
+		}
+	}
+
+	@Override
+	public void removeUser(int userID) throws Exception {
+		long seq;
+		synchronized (this) {
+			this.remove(userID);
+			seq = this.append(idRecord(REMOVE_USER, userID));
+		}
+		this.log.sync(seq);
+	}
+
+	// Expiries aren't synced, since one lost in a crash is just made again
+	// by the next sweep.
+	@Override
+	public synchronized int expire(long sentBefore, int limit) throws Exception {
+		int expired = 0;
+		Iterator<Waiting> it = this.waiting.values().iterator();
+		while (expired < limit && it.hasNext()) {
+			Waiting w = it.next();
+			if (w.sentAt >= sentBefore) {
+				break;
+			}
+			this.fail(w.msg);
+			it.remove();
+			this.append(idRecord(EXPIRE, w.msg.getMessageID()));
+			expired++;
+		}
+		return expired;
+	}
+
+	// Receipts are forgotten as soon as they are pulled, and the log is
+	// compacted in the background anyway.
+	@Override
+	public int purge(int limit) {
+		return 0;
+	}
+
+	// Wakes up every minute and compacts the log if it has grown enough.
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(COMPACT_INTERVAL);
+				synchronized (this) {
+					if (this.logRecords - this.liveRecords > Math.max(COMPACT_SLACK, this.liveRecords)) {
+						this.compact();
+					}
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} catch (IOException e) {
+				System.out.println("Could not compact the message log: " + e.getMessage());
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public synchronized int countMessages() {
+		return this.waiting.size();
+	}
+
+	private void deliverTo(Message msg, long sentAt) {
+		ArrayList<Message> mailbox = this.mailboxes.get(msg.getToUserID());
+		if (mailbox == null) {
+			mailbox = new ArrayList<Message>();
+			this.mailboxes.put(msg.getToUserID(), mailbox);
+		}
+		mailbox.add(msg);
+		this.waiting.put(msg.getMessageID(), new Waiting(msg, sentAt));
+		this.liveRecords++;
+	}
+
+	// Takes the message back out of its mailbox, and tells the sender that
+	// it failed. The caller takes it off the waiting list.
+	private void fail(Message msg) {
+		ArrayList<Message> mailbox = this.mailboxes.get(msg.getToUserID());
+		mailbox.remove(msg);
+		if (mailbox.isEmpty()) {
+			this.mailboxes.remove(msg.getToUserID());
+		}
+		this.receiptsFor(msg.getFromUserID()).failed.add(msg.getMessageID());
+	}
+
+	private Receipts receiptsFor(int userID) {
+		Receipts r = this.receipts.get(userID);
+		if (r == null) {
+			r = new Receipts();
+			this.receipts.put(userID, r);
+		}
+		return r;
+	}
+
+	// Empties the user's mailbox, turning each message into a delivered
+	// receipt for its sender, and hands the user their own receipts.
+	private Update takeAll(int userID) {
+		ArrayList<Message> received = this.mailboxes.remove(userID);
+		if (received == null) {
+			received = new ArrayList<Message>();
+		}
+		for (Message msg : received) {
+			this.waiting.remove(msg.getMessageID());
+			this.receiptsFor(msg.getFromUserID()).delivered.add(msg.getMessageID());
+		}
+
+		Receipts own = this.receipts.remove(userID);
+		if (own == null) {
+			own = new Receipts();
+		}
+		this.liveRecords -= own.delivered.size() + own.failed.size();
+		return new Update(received, own.delivered, own.failed);
+	}
+
+	private void remove(int userID) {
+		// the user's own messages go, wherever they are waiting
+		Iterator<Map.Entry<Integer, ArrayList<Message>>> it = this.mailboxes.entrySet().iterator();
+		while (it.hasNext()) {
+			ArrayList<Message> mailbox = it.next().getValue();
+			for (int i = mailbox.size() - 1; i >= 0; i--) {
+				if (mailbox.get(i).getFromUserID() == userID) {
+					this.waiting.remove(mailbox.remove(i).getMessageID());
+					this.liveRecords--;
+				}
+			}
+			if (mailbox.isEmpty()) {
+				it.remove();
+			}
+		}
+		Receipts own = this.receipts.remove(userID);
+		if (own != null) {
+			this.liveRecords -= own.delivered.size() + own.failed.size();
+		}
+
+		// and whatever was waiting for them fails
+		ArrayList<Message> waiting = this.mailboxes.remove(userID);
+		if (waiting != null) {
+			for (Message msg : waiting) {
+				this.waiting.remove(msg.getMessageID());
+				this.receiptsFor(msg.getFromUserID()).failed.add(msg.getMessageID());
+			}
+		}
+	}
+
+	private long append(byte[] record) throws IOException {
+		long seq = this.log.append(record);
+		this.logRecords++;
+		return seq;
+	}
+
+	private void replay(byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		byte type = in.readByte();
+		if (type == SEND) {
+			int msgID = in.readInt();
+			int fromUserID = in.readInt();
+			int toUserID = in.readInt();
+			this.deliverTo(new Message(msgID, toUserID, fromUserID, in.readUTF()), System.currentTimeMillis());
+			this.nextID = Math.max(this.nextID, msgID + 1);
+		} else if (type == SEND_AT) {
+			int msgID = in.readInt();
+			int fromUserID = in.readInt();
+			int toUserID = in.readInt();
+			long sentAt = in.readLong();
+			this.deliverTo(new Message(msgID, toUserID, fromUserID, in.readUTF()), sentAt);
+			this.nextID = Math.max(this.nextID, msgID + 1);
+		} else if (type == EXPIRE) {
+			Waiting w = this.waiting.remove(in.readInt());
+			if (w != null) {
+				this.fail(w.msg);
+			}
+		} else if (type == PULL) {
+			this.takeAll(in.readInt());
+		} else if (type == REMOVE_USER) {
+			this.remove(in.readInt());
+		} else if (type == NEXT_ID) {
+			this.nextID = Math.max(this.nextID, in.readInt());
+		} else if (type == RECEIPT) {
+			int msgID = in.readInt();
+			int fromUserID = in.readInt();
+			Receipts r = this.receiptsFor(fromUserID);
+			(in.readBoolean() ? r.delivered : r.failed).add(msgID);
+			this.liveRecords++;
+		} else {
+			throw new IOException("Unknown message log record type " + type);
+		}
+	}
+
+	// Rewrites the log as just the records needed for what is waiting now.
+	private void compact() throws IOException {
+		ArrayList<byte[]> records = new ArrayList<byte[]>();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(bytes);
+
+		record.writeByte(NEXT_ID);
+		record.writeInt(this.nextID);
+		records.add(bytes.toByteArray());
+
+		// oldest first, so the waiting list comes back in the same order
+		for (Waiting w : this.waiting.values()) {
+			records.add(sendRecord(w.msg, w.sentAt));
+		}
+		for (Map.Entry<Integer, Receipts> entry : this.receipts.entrySet()) {
+			for (int i = 0; i < 2; i++) {
+				ArrayList<Integer> ids = i == 0 ? entry.getValue().delivered : entry.getValue().failed;
+				for (Integer msgID : ids) {
+					bytes.reset();
+					record.writeByte(RECEIPT);
+					record.writeInt(msgID);
+					record.writeInt(entry.getKey());
+					record.writeBoolean(i == 0);
+					records.add(bytes.toByteArray());
+				}
+			}
+		}
+
+		this.log.rewrite(records);
+		this.logRecords = records.size();
+		this.liveRecords = records.size() - 1;
+	}
+
+	private static byte[] sendRecord(Message msg, long sentAt) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeByte(SEND_AT);
+		record.writeInt(msg.getMessageID());
+		record.writeInt(msg.getFromUserID());
+		record.writeInt(msg.getToUserID());
+		record.writeLong(sentAt);
+		record.writeUTF(msg.getContents());
+		return bytes.toByteArray();
+	}
+
+	private static byte[] idRecord(byte type, int id) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeByte(type);
+		record.writeInt(id);
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,578 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// A storage engine that keeps everything in memory, and loses it on
+// restart. It's for benchmarking the rest of the server without a disk, and
+// for trying out what a faster store would buy.
+// As with SQLite, write transactions take turns. Each one changes the maps
+// in place and keeps a list of how to undo its changes, to roll back with.
+// Read transactions wait for the write under way to finish, and writes wait
+// for the reads under way, so a read never sees a write that hasn't
+// committed, or only part of one. Transactions are short, so the wait is
+// too.
+public class MemoryStorage implements Storage {
+	private static final String UNDELIVERED = "Undelivered";
+	private static final String DELIVERED = "Delivered";
+	private static final String FAILED = "Failed";
+	private static final String ACKNOWLEDGED = "Acknowledged";
+
+	private static ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private static ConcurrentHashMap<Integer, Row> users = new ConcurrentHashMap<Integer, Row>();
+	private static ConcurrentHashMap<String, Integer> names = new ConcurrentHashMap<String, Integer>();
+	private static AtomicInteger lastUserID = new AtomicInteger();
+
+	private static ConcurrentHashMap<Integer, StoredMessage> messages = new ConcurrentHashMap<Integer, StoredMessage>();
+	// message IDs by the user that sent them, and by the user they were sent
+	// to, whatever their status
+	private static ConcurrentHashMap<Integer, ConcurrentSkipListSet<Integer>> bySender = new ConcurrentHashMap<Integer, ConcurrentSkipListSet<Integer>>();
+	private static ConcurrentHashMap<Integer, ConcurrentSkipListSet<Integer>> byRecipient = new ConcurrentHashMap<Integer, ConcurrentSkipListSet<Integer>>();
+	// and by status, for MessageSweeper. IDs are handed out in the order
+	// messages are sent, so the undelivered ones are oldest first.
+	private static ConcurrentHashMap<String, ConcurrentSkipListSet<Integer>> byStatus = new ConcurrentHashMap<String, ConcurrentSkipListSet<Integer>>();
+	private static AtomicInteger lastMessageID = new AtomicInteger();
+
+	// null unless a write transaction is under way
+	private ArrayList<Undo> undoLog = null;
+	private boolean reading = false;
+	private int savepointMark;
+	private LeaderboardChanges rankChanges = new LeaderboardChanges();
+	private boolean resetAll = false;
+	// Amounts from ScoreCounters, which are only added once the transaction
+	// commits, while ScoreCounters holds off profile reads. Otherwise a read
+	// in between would count them twice.
+	private ArrayList<long[]> scoresAdded = new ArrayList<long[]>();
+	private int scoresMark;
+
+	private static abstract class Undo {
+		abstract void undo();
+	}
+
+	private static class Row {
+		private int userID;
+		private String username;
+		private String password;
+		private String aboutMe;
+		private int age;
+		private String emailAddress;
+		private int exp;
+		private int points;
+		private boolean hasPic;
+
+		private Row(int userID, String username, String password, String aboutMe, int age, String emailAddress,
+				int exp, int points, boolean hasPic) {
+			this.userID = userID;
+			this.username = username;
+			this.password = password;
+			this.aboutMe = aboutMe;
+			this.age = age;
+			this.emailAddress = emailAddress;
+			this.exp = exp;
+			this.points = points;
+			this.hasPic = hasPic;
+		}
+
+		private User toUser() {
+			return new User(this.userID, this.username, this.aboutMe, this.age, this.points, this.exp, this.hasPic);
+		}
+	}
+
+	private static class StoredMessage {
+		private Message msg;
+		private String status;
+		private long sentAt;
+
+		private StoredMessage(Message msg, String status, long sentAt) {
+			this.msg = msg;
+			this.status = status;
+			this.sentAt = sentAt;
+		}
+	}
+
+	@Override
+	public void startTransaction() throws Exception {
+		lock.writeLock().lock();
+		this.undoLog = new ArrayList<Undo>();
+	}
+
+	@Override
+	public void startReadTransaction() throws Exception {
+		lock.readLock().lock();
+		this.reading = true;
+	}
+
+	@Override
+	public void endTransaction(boolean commit) throws Exception {
+		if (this.reading) {
+			this.reading = false;
+			lock.readLock().unlock();
+			return;
+		}
+		if (this.undoLog == null) {
+			return;
+		}
+
+		try {
+			if (commit) {
+				if (this.resetAll) {
+					StorageManager.getLeaderboard().clear();
+				}
+				for (long[] added : this.scoresAdded) {
+					Row r = users.get((int) added[0]);
+					if (r != null) {
+						users.put(r.userID, new Row(r.userID, r.username, r.password, r.aboutMe, r.age,
+								r.emailAddress, User.saturate(r.exp + added[1]), User.saturate(r.points + added[2]), r.hasPic));
+					}
+				}
+				this.rankChanges.apply(StorageManager.getLeaderboard());
+			} else {
+				this.undoTo(0);
+				this.rankChanges.clear();
+			}
+		} finally {
+			this.undoLog = null;
+			this.resetAll = false;
+			this.scoresAdded.clear();
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void savepoint() throws Exception {
+		this.checkWriting();
+		this.savepointMark = this.undoLog.size();
+		this.scoresMark = this.scoresAdded.size();
+		this.rankChanges.mark();
+	}
+
+	@Override
+	public void releaseSavepoint() throws Exception {
+		this.checkWriting();
+	}
+
+	@Override
+	public void rollbackToSavepoint() throws Exception {
+		this.checkWriting();
+		this.undoTo(this.savepointMark);
+		this.scoresAdded.subList(this.scoresMark, this.scoresAdded.size()).clear();
+		this.rankChanges.rollbackToMark();
+	}
+
+	@Override
+	public void resetDatabase() {
+		if (this.undoLog == null) {
+			return;
+		}
+		final HashMap<Integer, Row> oldUsers = new HashMap<Integer, Row>(users);
+		final HashMap<String, Integer> oldNames = new HashMap<String, Integer>(names);
+		final HashMap<Integer, StoredMessage> oldMessages = new HashMap<Integer, StoredMessage>(messages);
+		final HashMap<Integer, ConcurrentSkipListSet<Integer>> oldBySender = copy(bySender);
+		final HashMap<Integer, ConcurrentSkipListSet<Integer>> oldByRecipient = copy(byRecipient);
+		final HashMap<String, ConcurrentSkipListSet<Integer>> oldByStatus = copy(byStatus);
+		users.clear();
+		names.clear();
+		messages.clear();
+		bySender.clear();
+		byRecipient.clear();
+		byStatus.clear();
+		this.resetAll = true;
+
+		this.undoLog.add(new Undo() {
+			@Override
+			void undo() {
+				users.putAll(oldUsers);
+				names.putAll(oldNames);
+				messages.putAll(oldMessages);
+				bySender.putAll(oldBySender);
+				byRecipient.putAll(oldByRecipient);
+				byStatus.putAll(oldByStatus);
+				MemoryStorage.this.resetAll = false;
+			}
+		});
+	}
+
+	@Override
+	public User getUserWithPassword(String username, String[] password) throws Exception {
+		ScoreCounters scores = StorageManager.getScores();
+		scores.lockForRead();
+		try {
+			Integer userID = names.get(username);
+			Row r = userID == null ? null : users.get(userID);
+			if (r == null) {
+				throw AuthException.BAD_LOGIN;
+			}
+			password[0] = r.password;
+			return scores.merge(r.toUser());
+		} finally {
+			scores.unlockForRead();
+		}
+	}
+
+	@Override
+	public User getUserByName(String username) throws Exception {
+		if (!Validators.isValidUsername(username)) {
+			throw ValidationException.BAD_USERNAME;
+		}
+		ScoreCounters scores = StorageManager.getScores();
+		scores.lockForRead();
+		try {
+			return scores.merge(this.findByName(username).toUser());
+		} finally {
+			scores.unlockForRead();
+		}
+	}
+
+	@Override
+	public User getUserByID(int userID) throws Exception {
+		ScoreCounters scores = StorageManager.getScores();
+		scores.lockForRead();
+		try {
+			Row r = users.get(userID);
+			if (r == null) {
+				throw new Exception("User does not exist.");
+			}
+			return scores.merge(r.toUser());
+		} finally {
+			scores.unlockForRead();
+		}
+	}
+
+	@Override
+	public ArrayList<User> getUsersByIDs(List<Integer> userIDs) throws Exception {
+		ArrayList<User> found = new ArrayList<User>(userIDs.size());
+		ScoreCounters scores = StorageManager.getScores();
+		scores.lockForRead();
+		try {
+			for (Integer userID : userIDs) {
+				Row r = users.get(userID);
+				if (r != null) {
+					found.add(scores.merge(r.toUser()));
+				}
+			}
+		} finally {
+			scores.unlockForRead();
+		}
+		return found;
+	}
+
+	@Override
+	public int addUser(String username, String password, String aboutMe, int age, String emailAddress)
+			throws Exception {
+		if (!Validators.isValidEmailAddress(emailAddress)) {
+			throw ValidationException.BAD_EMAIL;
+		}
+		if (!Validators.isValidAge(age)) {
+			throw ValidationException.BAD_AGE;
+		}
+		if (!Validators.isValidUsername(username)) {
+			throw ValidationException.BAD_USERNAME;
+		}
+		this.checkWriting();
+
+		// the name has to be free, as UserName is UNIQUE in the table
+		if (names.containsKey(username)) {
+			throw new Exception("Database Error");
+		}
+		int userID = lastUserID.incrementAndGet();
+		this.put(names, username, userID);
+		this.put(users, userID, new Row(userID, username, password, aboutMe, age, emailAddress, 0, 0, false));
+		this.rankChanges.joined(userID);
+		return userID;
+	}
+
+	@Override
+	public void updateUser(int userID, String password, String aboutMe, int age) throws Exception {
+		if (!Validators.isValidAge(age)) {
+			throw ValidationException.BAD_AGE;
+		}
+		Row r = this.findForUpdate(userID);
+		this.put(users, userID,
+				new Row(userID, r.username, password, aboutMe, age, r.emailAddress, r.exp, r.points, r.hasPic));
+	}
+
+	@Override
+	public String getPassword(int userID) throws Exception {
+		Row r = users.get(userID);
+		if (r == null) {
+			throw new Exception("User does not exist.");
+		}
+		return r.password;
+	}
+
+	@Override
+	public void replacePassword(int userID, String oldPassword, String newPassword) throws Exception {
+		this.checkWriting();
+		Row r = users.get(userID);
+		if (r != null && oldPassword.equals(r.password)) {
+			this.put(users, userID, new Row(userID, r.username, newPassword, r.aboutMe, r.age, r.emailAddress,
+					r.exp, r.points, r.hasPic));
+		}
+	}
+
+	@Override
+	public void deleteUser(int userID) throws Exception {
+		Row r = this.findForUpdate(userID);
+		this.put(users, userID, null);
+		this.put(names, r.username, null);
+		this.rankChanges.left(userID);
+
+		// the user's own messages go
+		ConcurrentSkipListSet<Integer> sent = bySender.get(userID);
+		if (sent != null) {
+			for (Integer msgID : new ArrayList<Integer>(sent)) {
+				this.deleteMessage(msgID);
+			}
+		}
+		// and those still waiting for them fail
+		ConcurrentSkipListSet<Integer> received = byRecipient.get(userID);
+		if (received != null) {
+			for (Integer msgID : received) {
+				StoredMessage stored = messages.get(msgID);
+				if (stored.status.equals(UNDELIVERED)) {
+					this.setStatus(msgID, stored, FAILED);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void updateHasPic(int userID, boolean hasPic) throws Exception {
+		Row r = this.findForUpdate(userID);
+		this.put(users, userID,
+				new Row(userID, r.username, r.password, r.aboutMe, r.age, r.emailAddress, r.exp, r.points, hasPic));
+	}
+
+	@Override
+	public void addScores(int userID, long expToAdd, long pointsToAdd) throws Exception {
+		this.checkWriting();
+		this.scoresAdded.add(new long[] { userID, expToAdd, pointsToAdd });
+	}
+
+	@Override
+	public int putMessage(int fromUserID, int toUserID, String contents) throws Exception {
+		this.checkWriting();
+		int msgID = lastMessageID.incrementAndGet();
+		this.put(messages, msgID, new StoredMessage(new Message(msgID, toUserID, fromUserID, contents), UNDELIVERED,
+				System.currentTimeMillis()));
+		this.addTo(bySender, fromUserID, msgID);
+		this.addTo(byRecipient, toUserID, msgID);
+		this.addTo(byStatus, UNDELIVERED, msgID);
+		return msgID;
+	}
+
+	@Override
+	public ArrayList<Message> getMessagesByStatus(String status) throws Exception {
+		ArrayList<Message> found = new ArrayList<Message>();
+		for (StoredMessage stored : messages.values()) {
+			if (stored.status.equals(status)) {
+				found.add(stored.msg);
+			}
+		}
+		return found;
+	}
+
+	@Override
+	public void deleteAllMessages() throws Exception {
+		this.checkWriting();
+		for (Integer msgID : new ArrayList<Integer>(messages.keySet())) {
+			this.deleteMessage(msgID);
+		}
+	}
+
+	@Override
+	public Update pullMessages(int userID) throws Exception {
+		this.checkWriting();
+		ArrayList<Message> messagesReceived = new ArrayList<Message>();
+		ArrayList<Integer> messagesDelivered = new ArrayList<Integer>();
+		ArrayList<Integer> messagesFailed = new ArrayList<Integer>();
+
+		// receipts first, as in the SQLite engine, so a message the user sent
+		// themselves is only reported delivered on their next pull
+		ConcurrentSkipListSet<Integer> sent = bySender.get(userID);
+		if (sent != null) {
+			for (Integer msgID : new ArrayList<Integer>(sent)) {
+				StoredMessage stored = messages.get(msgID);
+				if (stored.status.equals(DELIVERED)) {
+					messagesDelivered.add(msgID);
+					this.setStatus(msgID, stored, ACKNOWLEDGED);
+				} else if (stored.status.equals(FAILED)) {
+					messagesFailed.add(msgID);
+					this.setStatus(msgID, stored, ACKNOWLEDGED);
+				}
+			}
+		}
+
+		ConcurrentSkipListSet<Integer> received = byRecipient.get(userID);
+		if (received != null) {
+			for (Integer msgID : received) {
+				StoredMessage stored = messages.get(msgID);
+				if (stored.status.equals(UNDELIVERED)) {
+					messagesReceived.add(stored.msg);
+					this.setStatus(msgID, stored, DELIVERED);
+				}
+			}
+		}
+		return new Update(messagesReceived, messagesDelivered, messagesFailed);
+	}
+
+	@Override
+	public int expireMessages(long sentBefore, int limit) throws Exception {
+		this.checkWriting();
+		ConcurrentSkipListSet<Integer> undelivered = byStatus.get(UNDELIVERED);
+		if (undelivered == null) {
+			return 0;
+		}
+		ArrayList<Integer> expired = new ArrayList<Integer>();
+		for (Integer msgID : undelivered) {
+			if (expired.size() == limit || messages.get(msgID).sentAt >= sentBefore) {
+				break;
+			}
+			expired.add(msgID);
+		}
+		for (Integer msgID : expired) {
+			this.setStatus(msgID, messages.get(msgID), FAILED);
+		}
+		return expired.size();
+	}
+
+	@Override
+	public int deleteAcknowledgedMessages(int limit) throws Exception {
+		this.checkWriting();
+		ConcurrentSkipListSet<Integer> acknowledged = byStatus.get(ACKNOWLEDGED);
+		if (acknowledged == null) {
+			return 0;
+		}
+		ArrayList<Integer> deleted = new ArrayList<Integer>();
+		for (Integer msgID : acknowledged) {
+			if (deleted.size() == limit) {
+				break;
+			}
+			deleted.add(msgID);
+		}
+		for (Integer msgID : deleted) {
+			this.deleteMessage(msgID);
+		}
+		return deleted.size();
+	}
+
+	private Row findByName(String username) throws Exception {
+		Integer userID = names.get(username);
+		Row r = userID == null ? null : users.get(userID);
+		if (r == null) {
+			throw new Exception("User does not exist.");
+		}
+		return r;
+	}
+
+	// An update that matches no user fails, as it does in the SQLite engine.
+	private Row findForUpdate(int userID) throws Exception {
+		this.checkWriting();
+		Row r = users.get(userID);
+		if (r == null) {
+			throw new Exception("Database Error");
+		}
+		return r;
+	}
+
+	private void checkWriting() throws Exception {
+		if (this.undoLog == null) {
+			throw new Exception("Database Error");
+		}
+	}
+
+	private void deleteMessage(int msgID) {
+		StoredMessage stored = messages.get(msgID);
+		this.put(messages, msgID, null);
+		this.removeFrom(bySender, stored.msg.getFromUserID(), msgID);
+		this.removeFrom(byRecipient, stored.msg.getToUserID(), msgID);
+		this.removeFrom(byStatus, stored.status, msgID);
+	}
+
+	private void setStatus(int msgID, StoredMessage stored, String status) {
+		this.put(messages, msgID, new StoredMessage(stored.msg, status, stored.sentAt));
+		this.removeFrom(byStatus, stored.status, msgID);
+		this.addTo(byStatus, status, msgID);
+	}
+
+	// Sets or, given null, removes the value, remembering how to undo it.
+	private <K, V> void put(final ConcurrentHashMap<K, V> map, final K key, V value) {
+		final V old = value == null ? map.remove(key) : map.put(key, value);
+		this.undoLog.add(new Undo() {
+			@Override
+			void undo() {
+				if (old == null) {
+					map.remove(key);
+				} else {
+					map.put(key, old);
+				}
+			}
+		});
+	}
+
+	private <K> void addTo(final ConcurrentHashMap<K, ConcurrentSkipListSet<Integer>> index, final K key,
+			final int msgID) {
+		ConcurrentSkipListSet<Integer> ids = index.get(key);
+		if (ids == null) {
+			ids = new ConcurrentSkipListSet<Integer>();
+			index.put(key, ids);
+		}
+		ids.add(msgID);
+		this.undoLog.add(new Undo() {
+			@Override
+			void undo() {
+				removeFrom(index, key, msgID);
+			}
+		});
+	}
+
+	private <K> void removeFrom(final ConcurrentHashMap<K, ConcurrentSkipListSet<Integer>> index, final K key,
+			final int msgID) {
+		ConcurrentSkipListSet<Integer> ids = index.get(key);
+		if (ids == null || !ids.remove(msgID)) {
+			return;
+		}
+		if (ids.isEmpty()) {
+			index.remove(key);
+		}
+		if (this.undoLog != null) {
+			this.undoLog.add(new Undo() {
+				@Override
+				void undo() {
+					ConcurrentSkipListSet<Integer> restored = index.get(key);
+					if (restored == null) {
+						restored = new ConcurrentSkipListSet<Integer>();
+						index.put(key, restored);
+					}
+					restored.add(msgID);
+				}
+			});
+		}
+	}
+
+	// Undoes changes, newest first, until only the first mark are left.
+	private void undoTo(int mark) {
+		ArrayList<Undo> log = this.undoLog;
+		// undoing an addTo removes from the index again, which mustn't be
+		// logged in turn
+		this.undoLog = null;
+		for (int i = log.size() - 1; i >= mark; i--) {
+			log.get(i).undo();
+		}
+		log.subList(mark, log.size()).clear();
+		this.undoLog = log;
+	}
+
+	private static <K> HashMap<K, ConcurrentSkipListSet<Integer>> copy(Map<K, ConcurrentSkipListSet<Integer>> index) {
+		HashMap<K, ConcurrentSkipListSet<Integer>> copy = new HashMap<K, ConcurrentSkipListSet<Integer>>();
+		for (Map.Entry<K, ConcurrentSkipListSet<Integer>> entry : index.entrySet()) {
+			copy.put(entry.getKey(), new ConcurrentSkipListSet<Integer>(entry.getValue()));
+		}
+		return copy;
+	}
+}
@@ -13,4 +13,20 @@ public class Message {
 		this.contents = contents;
 	}
 
+	public int getMessageID() {
+		return this.messageID;
+	}
+
+	public int getToUserID() {
+		return this.toUserID;
+	}
+
+	public int getFromUserID() {
+		return this.fromUserID;
+	}
+
+	public String getContents() {
+		return this.contents;
+	}
+
 }
@@ -0,0 +1,138 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+// An append-only file of records, each one framed as its length, its bytes
+// and a CRC32 of its bytes. Replaying stops at the first record that is cut
+// short or doesn't match its CRC, which is what a crash part way through an
+// append leaves behind.
+// Appends only reach the operating system. sync() is what makes them
+// durable, and threads that sync at the same time share one fsync.
+public class MessageLog {
+	private File file;
+	private FileOutputStream out;
+
+	// how many records have been appended, and how many of those are known
+	// to be on disk
+	private long written;
+	private long synced;
+	private Object syncLock = new Object();
+
+	public MessageLog(File file) {
+		this.file = file;
+	}
+
+	public boolean exists() {
+		return this.file.exists();
+	}
+
+	// Reads back every intact record, in the order they were appended.
+	public ArrayList<byte[]> replay() throws IOException {
+		ArrayList<byte[]> records = new ArrayList<byte[]>();
+		if (!this.file.exists()) {
+			return records;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+		try {
+			CRC32 crc = new CRC32();
+			while (true) {
+				int length = in.readInt();
+				if (length < 0 || length > this.file.length()) {
+					break;
+				}
+				byte[] record = new byte[length];
+				in.readFully(record);
+				crc.reset();
+				crc.update(record);
+				if (in.readInt() != (int) crc.getValue()) {
+					break;
+				}
+				records.add(record);
+			}
+		} catch (EOFException e) {
+			// the last append was cut short
+		} finally {
+			in.close();
+		}
+		return records;
+	}
+
+	// Returns the record's sequence number, to pass to sync().
+	public synchronized long append(byte[] record) throws IOException {
+		if (this.out == null) {
+			this.out = new FileOutputStream(this.file, true);
+		}
+		this.out.write(frame(record));
+		return ++this.written;
+	}
+
+	// Waits until the record with sequence number seq, and every one before
+	// it, is on disk. Whoever gets here first syncs for everyone that has
+	// appended so far.
+	public void sync(long seq) throws IOException {
+		synchronized (this.syncLock) {
+			if (this.synced >= seq) {
+				return;
+			}
+			long target;
+			FileOutputStream toSync;
+			synchronized (this) {
+				target = this.written;
+				toSync = this.out;
+			}
+			toSync.getChannel().force(false);
+			this.synced = target;
+		}
+	}
+
+	// Replaces the whole log with records, which must say everything the old
+	// log did. The caller must make sure nothing is appended meanwhile.
+	public void rewrite(ArrayList<byte[]> records) throws IOException {
+		synchronized (this.syncLock) {
+			synchronized (this) {
+				File tmp = new File(this.file.getPath() + ".tmp");
+				FileOutputStream tmpOut = new FileOutputStream(tmp);
+				try {
+					DataOutputStream data = new DataOutputStream(new BufferedOutputStream(tmpOut));
+					for (byte[] record : records) {
+						data.write(frame(record));
+					}
+					data.flush();
+					tmpOut.getChannel().force(false);
+				} finally {
+					tmpOut.close();
+				}
+				Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+
+				if (this.out != null) {
+					this.out.close();
+				}
+				this.out = new FileOutputStream(this.file, true);
+				this.synced = this.written;
+			}
+		}
+	}
+
+	private static byte[] frame(byte[] record) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(record.length + 8);
+		DataOutputStream data = new DataOutputStream(bytes);
+		data.writeInt(record.length);
+		data.write(record);
+		data.writeInt((int) crc.getValue());
+		return bytes.toByteArray();
+	}
+}
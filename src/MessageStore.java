@@ -0,0 +1,25 @@
+// Where messages wait between being sent and being pulled by a heartbeat,
+// along with the delivered and failed receipts waiting for their senders.
+public interface MessageStore {
+	// Returns the new message's ID once the message is safely stored.
+	public int send(int fromUserID, int toUserID, String contents) throws Exception;
+
+	// Takes everything waiting for the user: new messages sent to them, and
+	// the IDs of their own messages that have since been delivered or
+	// failed.
+	public Update pull(int userID) throws Exception;
+
+	// Called once the user's account is gone. Their messages that haven't
+	// been delivered are dropped, and messages still waiting for them fail.
+	public void removeUser(int userID) throws Exception;
+
+	// Fails up to limit messages sent before the given time that still
+	// haven't been delivered, so that their senders hear about it. Returns
+	// how many.
+	public int expire(long sentBefore, int limit) throws Exception;
+
+	// Deletes up to limit receipts that their senders have already pulled,
+	// for stores that leave them behind to keep pulls short. Returns how
+	// many.
+	public int purge(int limit) throws Exception;
+}
@@ -0,0 +1,112 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// Tidies up after the message store in small batches, away from the
+// requests: messages left undelivered for too long are failed, so their
+// senders hear about it, and receipts that senders have already pulled are
+// deleted.
+// Before each batch it checks how long requests have been taking since the
+// last one. If that's well over the usual, it waits, starting from the pause
+// between busy batches and twice as long each time, so that it only takes
+// up the slack. The usual follows requests up as readily as down, so a
+// steady rise in load is soon the new usual, and once the wait has grown as
+// long as it gets a batch is run anyway, so messages still expire while the
+// server is busy for hours.
+public class MessageSweeper implements Runnable {
+	private static final int BATCH = 500;
+	// how long to wait between batches while there is more to do, when
+	// there's nothing left, and at most when requests are slow
+	private static final int BUSY_PAUSE = 200;
+	private static final int IDLE_PAUSE = 30000;
+	private static final int MAX_PAUSE = 30000;
+	// Requests are slow once they take more than twice the usual, but
+	// never under the floor, so that jitter in fast ones doesn't count, and
+	// always over the ceiling, however used to it the usual has become.
+	private static final long FLOOR_MICROS = 20000;
+	private static final long CEILING_MICROS = 1000000;
+	// Each check moves the usual this fraction of the way to what requests
+	// took since the last one, whichever way that is.
+	private static final int WEIGHT = 8;
+
+	private MessageStore store;
+	private LatencyFilter latency;
+	private long ttl;
+
+	private volatile long usualMicros = 0;
+	private AtomicLong expired = new AtomicLong();
+	private AtomicLong purged = new AtomicLong();
+	private AtomicLong throttled = new AtomicLong();
+	private AtomicLong forced = new AtomicLong();
+	private volatile long lastMicros;
+
+	// Messages fail ttl milliseconds after they were sent.
+	public MessageSweeper(MessageStore store, LatencyFilter latency, long ttl) {
+		this.store = store;
+		this.latency = latency;
+		this.ttl = ttl;
+	}
+
+	@Override
+	public void run() {
+		long pause = IDLE_PAUSE;
+		// how long it last waited for requests to speed up, or 0 if they
+		// weren't slow at the last check
+		long backoff = 0;
+		while (true) {
+			try {
+				Thread.sleep(pause);
+				if (this.requestsSlow()) {
+					this.throttled.incrementAndGet();
+					if (backoff < MAX_PAUSE) {
+						backoff = backoff == 0 ? BUSY_PAUSE : Math.min(backoff * 2, MAX_PAUSE);
+						pause = backoff;
+						continue;
+					}
+					// still slow after waiting as long as it ever does, so
+					// one batch now
+					this.forced.incrementAndGet();
+					this.sweep();
+					pause = backoff;
+					continue;
+				}
+				backoff = 0;
+				pause = this.sweep() ? BUSY_PAUSE : IDLE_PAUSE;
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} catch (Exception e) {
+				System.out.println("Could not sweep messages: " + e.getMessage());
+				e.printStackTrace();
+				pause = IDLE_PAUSE;
+			}
+		}
+	}
+
+	// Runs one batch of each, and returns whether either had more to do.
+	public boolean sweep() throws Exception {
+		int failed = this.store.expire(System.currentTimeMillis() - this.ttl, BATCH);
+		this.expired.addAndGet(failed);
+		int deleted = this.store.purge(BATCH);
+		this.purged.addAndGet(deleted);
+		return failed == BATCH || deleted == BATCH;
+	}
+
+	// With no requests since the last check, nothing is slowed down.
+	private boolean requestsSlow() {
+		long micros = this.latency.takeAverageMicros();
+		this.lastMicros = micros;
+		if (micros == 0) {
+			return false;
+		}
+		if (this.usualMicros == 0) {
+			this.usualMicros = micros;
+		}
+		long limit = Math.min(Math.max(2 * this.usualMicros, FLOOR_MICROS), CEILING_MICROS);
+		this.usualMicros += (micros - this.usualMicros) / WEIGHT;
+		return micros > limit;
+	}
+
+	public String getStats() {
+		return "sweep.expired " + this.expired.get() + "\nsweep.purged " + this.purged.get() + "\nsweep.throttled "
+				+ this.throttled.get() + "\nsweep.forced " + this.forced.get() + "\nsweep.latencyMs "
+				+ this.lastMicros / 1000 + "\nsweep.usualLatencyMs " + this.usualMicros / 1000 + "\n";
+	}
+}
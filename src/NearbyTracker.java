@@ -0,0 +1,56 @@
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Remembers which nearby users each subscribed user was last sent, so that
+// heartbeats only need to carry the users who came into or went out of
+// range since. Users who stop sending heartbeats are forgotten after a few
+// minutes.
+public class NearbyTracker {
+	private static final long FORGET_AFTER = 300000;
+
+	private ConcurrentHashMap<Integer, Subscription> subscriptions = new ConcurrentHashMap<Integer, Subscription>();
+	private volatile long lastPurge = System.currentTimeMillis();
+
+	private static class Subscription {
+		private Set<Integer> sent;
+		private long updated;
+	}
+
+	// Returns the users last sent to userID, or an empty set if they haven't
+	// subscribed yet.
+	public Set<Integer> getLastSent(int userID) {
+		Subscription sub = this.subscriptions.get(userID);
+		if (sub == null) {
+			return new HashSet<Integer>();
+		}
+		return sub.sent;
+	}
+
+	public void setLastSent(int userID, Set<Integer> sent) {
+		long now = System.currentTimeMillis();
+		if (now - this.lastPurge > FORGET_AFTER) {
+			this.lastPurge = now;
+			this.purge(now);
+		}
+
+		Subscription sub = new Subscription();
+		sub.sent = sent;
+		sub.updated = now;
+		this.subscriptions.put(userID, sub);
+	}
+
+	public void unsubscribe(int userID) {
+		this.subscriptions.remove(userID);
+	}
+
+	private void purge(long now) {
+		Iterator<Subscription> iter = this.subscriptions.values().iterator();
+		while (iter.hasNext()) {
+			if (now - iter.next().updated > FORGET_AFTER) {
+				iter.remove();
+			}
+		}
+	}
+}
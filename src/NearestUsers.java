@@ -0,0 +1,214 @@
+import java.util.ArrayList;
+
+// Collects the k users closest to a point, within a maximum distance. The
+// candidates are kept in a bounded max-heap on distance, so once k users
+// have been found the k-th best distance becomes the new search radius, and
+// the bounding box used to prune the rest of the search shrinks with it.
+public class NearestUsers {
+	// A box has to be this many meters inside where a search starts to be
+	// skipped, so that rounding can't skip a user right on the edge.
+	private static final double ROUNDING = 0.001;
+
+	private double lat;
+	private double lon;
+	private int k;
+	private int excludeID;
+	private SearchFilter filter;
+	private int[] ids;
+	private double[] dists;
+	private int size;
+	private boolean sorted;
+
+	// Where an earlier page of the same search ended, if this search carries
+	// on from one. A distance below zero means from the start.
+	private double afterDist = -1;
+	private int afterID;
+
+	// The current search radius in meters, and the box of latitudes and
+	// longitudes that it covers around the point.
+	private double bound;
+	private double latSpan;
+	private double lonSpan;
+
+	// excludeID is left out of the results, typically the user searching, and
+	// so is anyone that filter rejects.
+	public NearestUsers(double lat, double lon, int dist, int k, int excludeID, SearchFilter filter) {
+		this.lat = lat;
+		this.lon = lon;
+		this.k = k;
+		this.excludeID = excludeID;
+		this.filter = filter;
+		this.ids = new int[k];
+		this.dists = new double[k];
+		this.setBound(dist);
+	}
+
+	public double getLat() {
+		return this.lat;
+	}
+
+	public double getLon() {
+		return this.lon;
+	}
+
+	public double getLatSpan() {
+		return this.latSpan;
+	}
+
+	public double getLonSpan() {
+		return this.lonSpan;
+	}
+
+	// Leaves out everyone up to and including the user userID at dist, in the
+	// order of the results, so that the search carries on where an earlier
+	// page of it ended.
+	public void startAfter(double dist, int userID) {
+		this.afterDist = dist;
+		this.afterID = userID;
+	}
+
+	// Returns whether every point in the box is nearer than where this search
+	// starts, so that nobody in it can be offered. The farthest point of a
+	// box is one of its corners, as long as the box reaches no more than half
+	// way round the world from the point.
+	public boolean before(double minLat, double maxLat, double minLon, double maxLon) {
+		if (this.afterDist < 0 || maxLon - this.lon > 180 || this.lon - minLon > 180) {
+			return false;
+		}
+		double far = Math.max(
+				Math.max(UserProximityManager.computeDistance(this.lat, this.lon, minLat, minLon),
+						UserProximityManager.computeDistance(this.lat, this.lon, minLat, maxLon)),
+				Math.max(UserProximityManager.computeDistance(this.lat, this.lon, maxLat, minLon),
+						UserProximityManager.computeDistance(this.lat, this.lon, maxLat, maxLon)));
+		return far + ROUNDING < this.afterDist;
+	}
+
+	public void offer(int userID, double userLat, double userLon, int age, boolean hasPic) {
+		// cheap box check before paying for the haversine
+		if (Math.abs(userLat - this.lat) > this.latSpan || Math.abs(userLon - this.lon) > this.lonSpan) {
+			return;
+		}
+		if (!this.filter.accepts(age, hasPic)) {
+			return;
+		}
+		this.offer(userID, UserProximityManager.computeDistance(this.lat, this.lon, userLat, userLon));
+	}
+
+	// Offers a user whose distance from the point is already known, and who
+	// has already been filtered.
+	public void offer(int userID, double dist) {
+		if (userID == this.excludeID || dist > this.bound) {
+			return;
+		}
+		if (dist < this.afterDist || (dist == this.afterDist && userID <= this.afterID)) {
+			return;
+		}
+		if (this.size < this.k) {
+			this.ids[this.size] = userID;
+			this.dists[this.size] = dist;
+			this.siftUp(this.size++);
+			if (this.size == this.k) {
+				this.setBound(this.dists[0]);
+			}
+		} else if (dist < this.dists[0] || (dist == this.dists[0] && userID < this.ids[0])) {
+			// on a tie the smaller ID wins, so that the results don't depend
+			// on the order the engine happens to offer users in
+			this.ids[0] = userID;
+			this.dists[0] = dist;
+			this.siftDown(0, this.size);
+			this.setBound(this.dists[0]);
+		}
+	}
+
+	public boolean contains(int userID) {
+		for (int i = 0; i < this.size; i++) {
+			if (this.ids[i] == userID) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Sorts the users found so far, closest first, and returns how many there
+	// are. Nothing more may be offered afterwards.
+	public int sort() {
+		if (!this.sorted) {
+			// heap sort in place: repeatedly move the farthest user to the end
+			for (int end = this.size - 1; end > 0; end--) {
+				this.swap(0, end);
+				this.siftDown(0, end);
+			}
+			this.sorted = true;
+		}
+		return this.size;
+	}
+
+	// Only valid after sort().
+	public int getID(int i) {
+		return this.ids[i];
+	}
+
+	// Only valid after sort().
+	public double getDistance(int i) {
+		return this.dists[i];
+	}
+
+	// Returns the IDs found, closest first. Nothing more may be offered
+	// afterwards.
+	public ArrayList<Integer> toSortedList() {
+		int n = this.sort();
+		ArrayList<Integer> rslts = new ArrayList<Integer>(n);
+		for (int i = 0; i < n; i++) {
+			rslts.add(this.ids[i]);
+		}
+		return rslts;
+	}
+
+	private void setBound(double bound) {
+		this.bound = bound;
+		this.latSpan = UserProximityManager.latitudeSpan(bound);
+		this.lonSpan = UserProximityManager.longitudeSpan(this.lat, this.lon, bound);
+	}
+
+	// Farther users, and on a tie larger IDs, sit nearer the root.
+	private boolean above(int a, int b) {
+		return this.dists[a] > this.dists[b] || (this.dists[a] == this.dists[b] && this.ids[a] > this.ids[b]);
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!this.above(i, parent)) {
+				return;
+			}
+			this.swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i, int n) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= n) {
+				return;
+			}
+			if (child + 1 < n && this.above(child + 1, child)) {
+				child++;
+			}
+			if (!this.above(child, i)) {
+				return;
+			}
+			this.swap(i, child);
+			i = child;
+		}
+	}
+
+	private void swap(int a, int b) {
+		int id = this.ids[a];
+		this.ids[a] = this.ids[b];
+		this.ids[b] = id;
+		double dist = this.dists[a];
+		this.dists[a] = this.dists[b];
+		this.dists[b] = dist;
+	}
+}
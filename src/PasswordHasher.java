@@ -0,0 +1,179 @@
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+// Hashes and checks passwords with salted PBKDF2. That is slow on purpose,
+// so it runs on a small pool of its own with a bounded queue: a burst of
+// logins waits its turn there, or is turned away, rather than taking the
+// CPU from every other request.
+// Hashes are stored as "pbkdf2$<iterations>$<salt>$<hash>", in base 64.
+// Anything else is taken to be a password from before hashing, stored as
+// is.
+// A password that has just matched is remembered for a few minutes, as a
+// SHA-256 of it under a key that never leaves this process, so that clients
+// sending their password with every heartbeat don't pay for PBKDF2 each
+// time. It is remembered against the stored hash, so a new password forgets
+// it, and a wrong one always gets the full check.
+public class PasswordHasher {
+	private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+	private static final String PREFIX = "pbkdf2$";
+	private static final int ITERATIONS = 100000;
+	private static final int SALT_BYTES = 16;
+	private static final int HASH_BITS = 256;
+	private static final int QUEUE_SIZE = 256;
+	private static final long VERIFIED_TTL = 300000;
+
+	private ThreadPoolExecutor pool;
+	private SecureRandom random = new SecureRandom();
+	private byte[] key = new byte[32];
+	private ConcurrentHashMap<String, Verified> verified = new ConcurrentHashMap<String, Verified>();
+	private volatile long lastPurge = System.currentTimeMillis();
+
+	private static class Verified {
+		private byte[] fingerprint;
+		private long expires;
+	}
+
+	// Receives a hash made in the background.
+	public static abstract class Hashed {
+		public abstract void done(String hash) throws Exception;
+	}
+
+	public PasswordHasher(int threads) {
+		this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE_SIZE));
+		this.random.nextBytes(this.key);
+	}
+
+	public String hash(final String password) throws Exception {
+		final byte[] salt = new byte[SALT_BYTES];
+		this.random.nextBytes(salt);
+		byte[] hash = this.run(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				return pbkdf2(password, salt, ITERATIONS);
+			}
+		});
+		return format(salt, hash);
+	}
+
+	// Hashes the password on the pool without waiting for it, and hands the
+	// hash to hashed. If the pool is too busy, the password is left for
+	// another time it is seen.
+	public void hashLater(final String password, final Hashed hashed) {
+		final byte[] salt = new byte[SALT_BYTES];
+		this.random.nextBytes(salt);
+		try {
+			this.pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						hashed.done(format(salt, pbkdf2(password, salt, ITERATIONS)));
+					} catch (Exception e) {
+						System.out.println("Could not hash password: " + e.getMessage());
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			System.out.println("Too many logins to hash a password now.");
+		}
+	}
+
+	public boolean verify(final String password, String stored) throws Exception {
+		if (!stored.startsWith(PREFIX)) {
+			return MessageDigest.isEqual(password.getBytes("UTF-8"), stored.getBytes("UTF-8"));
+		}
+		long now = System.currentTimeMillis();
+		byte[] fingerprint = this.fingerprint(password);
+		Verified v = this.verified.get(stored);
+		if (v != null && v.expires > now && MessageDigest.isEqual(v.fingerprint, fingerprint)) {
+			return true;
+		}
+
+		String[] parts = stored.split("\\$");
+		final int iterations = Integer.parseInt(parts[1]);
+		final byte[] salt = Base64.getDecoder().decode(parts[2]);
+		byte[] expected = Base64.getDecoder().decode(parts[3]);
+		byte[] actual = this.run(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				return pbkdf2(password, salt, iterations);
+			}
+		});
+		// compared in constant time, so the time taken gives nothing away
+		if (!MessageDigest.isEqual(expected, actual)) {
+			return false;
+		}
+
+		if (now - this.lastPurge > VERIFIED_TTL) {
+			this.lastPurge = now;
+			this.purge(now);
+		}
+		v = new Verified();
+		v.fingerprint = fingerprint;
+		v.expires = now + VERIFIED_TTL;
+		this.verified.put(stored, v);
+		return true;
+	}
+
+	// Whether the stored password should be hashed again, with the current
+	// settings, the next time the password itself is known.
+	public static boolean needsRehash(String stored) {
+		return !stored.startsWith(PREFIX + ITERATIONS + "$");
+	}
+
+	public String getStats() {
+		return "hashing.active " + this.pool.getActiveCount() + "\nhashing.queued " + this.pool.getQueue().size()
+				+ "\nhashing.completed " + this.pool.getCompletedTaskCount() + "\n";
+	}
+
+	private byte[] fingerprint(String password) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		digest.update(this.key);
+		return digest.digest(password.getBytes("UTF-8"));
+	}
+
+	private void purge(long now) {
+		Iterator<Verified> iter = this.verified.values().iterator();
+		while (iter.hasNext()) {
+			if (iter.next().expires < now) {
+				iter.remove();
+			}
+		}
+	}
+
+	private static String format(byte[] salt, byte[] hash) {
+		Base64.Encoder enc = Base64.getEncoder();
+		return PREFIX + ITERATIONS + "$" + enc.encodeToString(salt) + "$" + enc.encodeToString(hash);
+	}
+
+	private byte[] run(Callable<byte[]> task) throws Exception {
+		try {
+			return this.pool.submit(task).get();
+		} catch (RejectedExecutionException e) {
+			throw BusyException.TOO_MANY_LOGINS;
+		} catch (ExecutionException e) {
+			throw new Exception("Could not hash password: " + e.getCause().getMessage());
+		}
+	}
+
+	private static byte[] pbkdf2(String password, byte[] salt, int iterations) throws Exception {
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+		try {
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+		} finally {
+			spec.clearPassword();
+		}
+	}
+}
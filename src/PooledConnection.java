@@ -0,0 +1,66 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+
+// A connection from a ConnectionPool, along with every statement that has
+// been compiled on it so far. Statements are kept, keyed by their SQL, for
+// as long as the connection is, so each query is only compiled once per
+// connection. Only the one thread holding the connection may use it.
+public class PooledConnection {
+	private Connection connection;
+	private HashMap<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+	public PooledConnection(Connection connection) {
+		this.connection = connection;
+	}
+
+	public Connection getConnection() {
+		return this.connection;
+	}
+
+	// Returns the compiled statement for sql, compiling it if this is the
+	// first time it has been used on this connection. The caller must not
+	// close it.
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement stmt = this.statements.get(sql);
+		if (stmt == null) {
+			stmt = this.connection.prepareStatement(sql);
+			this.statements.put(sql, stmt);
+		}
+		return stmt;
+	}
+
+	// Same as prepare, but the statement hands back generated keys. These
+	// are cached apart from the plain statements with the same SQL.
+	public PreparedStatement prepareWithKeys(String sql) throws SQLException {
+		String key = "keys:" + sql;
+		PreparedStatement stmt = this.statements.get(key);
+		if (stmt == null) {
+			stmt = this.connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+			this.statements.put(key, stmt);
+		}
+		return stmt;
+	}
+
+	// Forgets every statement compiled so far. The SQLite driver can't run a
+	// statement again once it has failed, so this is called whenever work
+	// is rolled back, which is what follows a failure.
+	public void forgetStatements() {
+		for (PreparedStatement stmt : this.statements.values()) {
+			try {
+				stmt.close();
+			} catch (SQLException e) {
+				System.out.println(e.getMessage());
+			}
+		}
+		this.statements.clear();
+	}
+
+	// Closing the connection closes every statement compiled on it too.
+	public void close() throws SQLException {
+		this.statements.clear();
+		this.connection.close();
+	}
+}
@@ -0,0 +1,108 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+// Every ten seconds, writes the active users to a memory mapped file, so that
+// a restarted server can load them again instead of starting out with nobody
+// active. The file is a header of a magic number, a version and a count,
+// followed by one fixed size record per user: userID, latitude, longitude,
+// time last seen, age, and whether they have a picture.
+public class PresenceSnapshotter implements Runnable {
+	private static final int SNAPSHOT_INTERVAL = 10000;
+	private static final int MAGIC = 0x53544b50;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 12;
+	private static final int RECORD_SIZE = 33;
+
+	private ActiveUserManager activeMgr;
+	private File file;
+
+	public PresenceSnapshotter(ActiveUserManager am, String fileName) {
+		this.activeMgr = am;
+		this.file = new File(fileName);
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(SNAPSHOT_INTERVAL);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			try {
+				this.save();
+			} catch (IOException e) {
+				System.out.println("Could not save presence snapshot: " + e.getMessage());
+			}
+		}
+	}
+
+	// Writes to a temporary file first and then moves it into place, so a
+	// crash part way through never leaves a half written snapshot behind.
+	// The periodic save and the one at shutdown share that temporary file, so
+	// only one save runs at a time.
+	public synchronized void save() throws IOException {
+		PresenceTable snapshot = this.activeMgr.snapshot();
+		int count = snapshot.size();
+		File tmp = new File(this.file.getPath() + ".tmp");
+
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(0);
+			MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					HEADER_SIZE + (long) count * RECORD_SIZE);
+			buf.putInt(MAGIC);
+			buf.putInt(VERSION);
+			buf.putInt(count);
+			snapshot.writeTo(buf);
+			buf.force();
+		} finally {
+			raf.close();
+		}
+
+		Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// Loads the users from the last snapshot, if there is one. Users who have
+	// expired since it was written are left out. Returns how many were loaded.
+	public int load() throws IOException {
+		if (!this.file.exists()) {
+			return 0;
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+		try {
+			long length = raf.length();
+			MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+			if (length < HEADER_SIZE || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+				throw new IOException("Not a presence snapshot: " + this.file);
+			}
+			int count = buf.getInt();
+			if (length < HEADER_SIZE + (long) count * RECORD_SIZE) {
+				throw new IOException("Presence snapshot is truncated: " + this.file);
+			}
+
+			int loaded = 0;
+			for (int i = 0; i < count; i++) {
+				int userID = buf.getInt();
+				double lat = buf.getDouble();
+				double lon = buf.getDouble();
+				long seen = buf.getLong();
+				int age = buf.getInt();
+				boolean hasPic = buf.get() != 0;
+				if (this.activeMgr.addUser(userID, lat, lon, seen, age, hasPic)) {
+					loaded++;
+				}
+			}
+			return loaded;
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,47 @@
+// The latest position of every active user. The users are spread over
+// several PresenceTables by userID, each with its own lock, so heartbeats
+// from different users rarely wait on each other.
+public class PresenceStore {
+	private static final int STRIPES = 32;
+
+	private PresenceTable[] stripes = new PresenceTable[STRIPES];
+
+	public PresenceStore() {
+		for (int i = 0; i < STRIPES; i++) {
+			this.stripes[i] = new PresenceTable();
+		}
+	}
+
+	// Returns whether the user was not already active.
+	public boolean put(int userID, double lat, double lon, long seen, int age, boolean hasPic) {
+		return this.stripe(userID).put(userID, lat, lon, seen, age, hasPic);
+	}
+
+	// See PresenceTable.expire.
+	public long expire(int userID, long cutoff) {
+		return this.stripe(userID).expire(userID, cutoff);
+	}
+
+	public boolean contains(int userID) {
+		return this.stripe(userID).contains(userID);
+	}
+
+	public int size() {
+		int size = 0;
+		for (PresenceTable stripe : this.stripes) {
+			size += stripe.size();
+		}
+		return size;
+	}
+
+	// Copies every user into dest, one stripe at a time.
+	public void copyInto(PresenceTable dest) {
+		for (PresenceTable stripe : this.stripes) {
+			stripe.copyInto(dest);
+		}
+	}
+
+	private PresenceTable stripe(int userID) {
+		return this.stripes[(userID ^ (userID >>> 16)) & (STRIPES - 1)];
+	}
+}
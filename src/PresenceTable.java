@@ -0,0 +1,184 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// A table of user positions kept in parallel primitive arrays, so that
+// tracking a user costs no objects at all once the arrays have grown. The
+// profile fields that searches can filter on are kept alongside, so that
+// filtering never needs the database.
+// Lookups by userID go through an open addressing index that stores slot
+// numbers plus one, so that zero can mean an empty bucket.
+public class PresenceTable {
+	private int[] ids;
+	private double[] lats;
+	private double[] lons;
+	// when each user last sent a heartbeat, in milliseconds
+	private long[] seen;
+	private int[] ages;
+	private boolean[] pics;
+	private int size;
+	private int[] index;
+
+	public PresenceTable() {
+		this(16);
+	}
+
+	public PresenceTable(int capacity) {
+		capacity = Math.max(capacity, 16);
+		this.ids = new int[capacity];
+		this.lats = new double[capacity];
+		this.lons = new double[capacity];
+		this.seen = new long[capacity];
+		this.ages = new int[capacity];
+		this.pics = new boolean[capacity];
+		this.index = new int[Integer.highestOneBit(capacity - 1) << 2];
+	}
+
+	// Adds the user, or moves them if they are already in the table. Returns
+	// whether the user is new to the table.
+	public synchronized boolean put(int userID, double lat, double lon, long seen, int age, boolean hasPic) {
+		boolean added = false;
+		int bucket = this.find(userID);
+		int slot = this.index[bucket] - 1;
+		if (slot < 0) {
+			if (this.size == this.ids.length) {
+				this.grow();
+				bucket = this.find(userID);
+			}
+			slot = this.size++;
+			this.ids[slot] = userID;
+			this.index[bucket] = slot + 1;
+			added = true;
+		}
+		this.lats[slot] = lat;
+		this.lons[slot] = lon;
+		this.seen[slot] = seen;
+		this.ages[slot] = age;
+		this.pics[slot] = hasPic;
+		return added;
+	}
+
+	public synchronized void remove(int userID) {
+		int bucket = this.find(userID);
+		int slot = this.index[bucket] - 1;
+		if (slot < 0) {
+			return;
+		}
+		this.removeBucket(bucket);
+
+		// The last user fills the hole, so the arrays stay packed.
+		int last = --this.size;
+		if (slot != last) {
+			this.ids[slot] = this.ids[last];
+			this.lats[slot] = this.lats[last];
+			this.lons[slot] = this.lons[last];
+			this.seen[slot] = this.seen[last];
+			this.ages[slot] = this.ages[last];
+			this.pics[slot] = this.pics[last];
+			this.index[this.find(this.ids[slot])] = slot + 1;
+		}
+	}
+
+	// Removes the user if their last heartbeat was at or before cutoff.
+	// Returns when they were last seen if they are still active, or -1 if
+	// they have been removed or were never in the table.
+	public synchronized long expire(int userID, long cutoff) {
+		int slot = this.index[this.find(userID)] - 1;
+		if (slot < 0) {
+			return -1;
+		}
+		if (this.seen[slot] > cutoff) {
+			return this.seen[slot];
+		}
+		this.remove(userID);
+		return -1;
+	}
+
+	public synchronized boolean contains(int userID) {
+		return this.index[this.find(userID)] != 0;
+	}
+
+	public synchronized int size() {
+		return this.size;
+	}
+
+	// Copies every user in this table that isn't already in dest into dest.
+	public synchronized void copyInto(PresenceTable dest) {
+		for (int i = 0; i < this.size; i++) {
+			if (!dest.contains(this.ids[i])) {
+				dest.put(this.ids[i], this.lats[i], this.lons[i], this.seen[i], this.ages[i], this.pics[i]);
+			}
+		}
+	}
+
+	// Writes every user to buf as a PresenceSnapshotter record.
+	public synchronized void writeTo(ByteBuffer buf) {
+		for (int i = 0; i < this.size; i++) {
+			buf.putInt(this.ids[i]);
+			buf.putDouble(this.lats[i]);
+			buf.putDouble(this.lons[i]);
+			buf.putLong(this.seen[i]);
+			buf.putInt(this.ages[i]);
+			buf.put((byte) (this.pics[i] ? 1 : 0));
+		}
+	}
+
+	public synchronized void nearest(NearestUsers near) {
+		for (int i = 0; i < this.size; i++) {
+			near.offer(this.ids[i], this.lats[i], this.lons[i], this.ages[i], this.pics[i]);
+		}
+	}
+
+	public synchronized KDTree buildTree() {
+		return new KDTree(this.ids, this.lats, this.lons, this.ages, this.pics, this.size);
+	}
+
+	// Returns the bucket holding userID, or the empty bucket where it belongs.
+	private int find(int userID) {
+		int mask = this.index.length - 1;
+		int bucket = mix(userID) & mask;
+		while (this.index[bucket] != 0 && this.ids[this.index[bucket] - 1] != userID) {
+			bucket = (bucket + 1) & mask;
+		}
+		return bucket;
+	}
+
+	// Empties a bucket of the index, shifting back any later entries of the
+	// same probe run so that they can still be found.
+	private void removeBucket(int bucket) {
+		int mask = this.index.length - 1;
+		int hole = bucket;
+		int next = (hole + 1) & mask;
+		while (this.index[next] != 0) {
+			int home = mix(this.ids[this.index[next] - 1]) & mask;
+			// Moves the entry back unless its home lies cyclically in
+			// (hole, next].
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				this.index[hole] = this.index[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		this.index[hole] = 0;
+	}
+
+	private void grow() {
+		int capacity = this.ids.length * 2;
+		this.ids = Arrays.copyOf(this.ids, capacity);
+		this.lats = Arrays.copyOf(this.lats, capacity);
+		this.lons = Arrays.copyOf(this.lons, capacity);
+		this.seen = Arrays.copyOf(this.seen, capacity);
+		this.ages = Arrays.copyOf(this.ages, capacity);
+		this.pics = Arrays.copyOf(this.pics, capacity);
+		this.index = new int[this.index.length * 2];
+		for (int i = 0; i < this.size; i++) {
+			this.index[this.find(this.ids[i])] = i + 1;
+		}
+	}
+
+	// User IDs are handed out sequentially, so they are scrambled before
+	// being used as a hash.
+	private static int mix(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
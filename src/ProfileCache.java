@@ -0,0 +1,156 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A bounded cache of user profiles by userID, split into segments that are
+// each locked on their own and each evict their least recently used
+// profile once full. Usernames never change, so they are cached as a
+// lookup from username to userID on top.
+// A profile read from the database may already be out of date by the time
+// it's cached, if it was changed meanwhile. So loaders take a ticket
+// before reading, and the profile is only cached if that user hasn't been
+// invalidated since. Users are tracked in stripes by userID, each
+// remembering when one of its users was last invalidated, so invalidating
+// a batch of users only turns away loads that share a stripe with them.
+public class ProfileCache {
+	private static final int SEGMENTS = 16;
+	// a multiple of SEGMENTS, so that each stripe falls in one segment and
+	// is guarded by its lock
+	private static final int STRIPES = 4096;
+
+	private Segment<Integer, User>[] users;
+	private Segment<String, Integer>[] names;
+	private AtomicLong invalidations = new AtomicLong();
+	private long[] invalidated = new long[STRIPES];
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong evictions = new AtomicLong();
+
+	private class Segment<K, V> extends LinkedHashMap<K, V> {
+		private static final long serialVersionUID = 1L;
+		private int capacity;
+		private boolean counted;
+
+		private Segment(int capacity, boolean counted) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+			this.counted = counted;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			if (this.size() > this.capacity) {
+				if (this.counted) {
+					ProfileCache.this.evictions.incrementAndGet();
+				}
+				return true;
+			}
+			return false;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public ProfileCache(int capacity) {
+		int perSegment = Math.max(1, capacity / SEGMENTS);
+		this.users = (Segment<Integer, User>[]) new Segment<?, ?>[SEGMENTS];
+		this.names = (Segment<String, Integer>[]) new Segment<?, ?>[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++) {
+			this.users[i] = new Segment<Integer, User>(perSegment, true);
+			this.names[i] = new Segment<String, Integer>(perSegment, false);
+		}
+	}
+
+	// Returns the cached profile, or null.
+	public User get(int userID) {
+		Segment<Integer, User> segment = this.users[userID & (SEGMENTS - 1)];
+		User usr;
+		synchronized (segment) {
+			usr = segment.get(userID);
+		}
+		(usr == null ? this.misses : this.hits).incrementAndGet();
+		return usr;
+	}
+
+	// Returns the cached profile of the user with this name, or null.
+	public User getByName(String username) {
+		Segment<String, Integer> segment = this.names[username.hashCode() & (SEGMENTS - 1)];
+		Integer userID;
+		synchronized (segment) {
+			userID = segment.get(username);
+		}
+		if (userID == null) {
+			this.misses.incrementAndGet();
+			return null;
+		}
+		return this.get(userID);
+	}
+
+	// To be called before reading a profile from the database, and passed
+	// to put afterwards. It needn't know which user will be read.
+	public long ticket() {
+		return this.invalidations.get();
+	}
+
+	public void put(User usr, long ticket) {
+		Segment<Integer, User> segment = this.users[usr.getUserID() & (SEGMENTS - 1)];
+		synchronized (segment) {
+			// checked while holding the lock, so an invalidation either
+			// happened before, and is seen here, or happens after, and
+			// removes this profile
+			if (this.invalidated[usr.getUserID() & (STRIPES - 1)] > ticket) {
+				return;
+			}
+			segment.put(usr.getUserID(), usr);
+		}
+		Segment<String, Integer> nameSegment = this.names[usr.getUsername().hashCode() & (SEGMENTS - 1)];
+		synchronized (nameSegment) {
+			nameSegment.put(usr.getUsername(), usr.getUserID());
+		}
+	}
+
+	// To be called once a change to the user's profile has been committed.
+	public void invalidate(int userID) {
+		Segment<Integer, User> segment = this.users[userID & (SEGMENTS - 1)];
+		User usr;
+		synchronized (segment) {
+			this.invalidated[userID & (STRIPES - 1)] = this.invalidations.incrementAndGet();
+			usr = segment.remove(userID);
+		}
+		// if the user was deleted their name could go to someone new, so
+		// it goes too
+		if (usr != null) {
+			Segment<String, Integer> nameSegment = this.names[usr.getUsername().hashCode() & (SEGMENTS - 1)];
+			synchronized (nameSegment) {
+				nameSegment.remove(usr.getUsername());
+			}
+		}
+	}
+
+	// To be called once the whole database has been reset.
+	public void clear() {
+		for (int i = 0; i < SEGMENTS; i++) {
+			synchronized (this.users[i]) {
+				long now = this.invalidations.incrementAndGet();
+				for (int stripe = i; stripe < STRIPES; stripe += SEGMENTS) {
+					this.invalidated[stripe] = now;
+				}
+				this.users[i].clear();
+			}
+			synchronized (this.names[i]) {
+				this.names[i].clear();
+			}
+		}
+	}
+
+	public String getStats() {
+		int size = 0;
+		for (Segment<Integer, User> segment : this.users) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return "profiles.size " + size + "\nprofiles.hits " + this.hits.get() + "\nprofiles.misses "
+				+ this.misses.get() + "\nprofiles.evictions " + this.evictions.get() + "\n";
+	}
+}
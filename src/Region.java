@@ -0,0 +1,50 @@
+// A rectangle of latitude and longitude whose active users are tracked by
+// one server node.
+public class Region {
+	private String name;
+	private String host;
+	private int port;
+	private double minLat;
+	private double maxLat;
+	private double minLon;
+	private double maxLon;
+
+	public Region(String name, String host, int port, double minLat, double maxLat, double minLon, double maxLon) {
+		this.name = name;
+		this.host = host;
+		this.port = port;
+		this.minLat = minLat;
+		this.maxLat = maxLat;
+		this.minLon = minLon;
+		this.maxLon = maxLon;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public String getHost() {
+		return this.host;
+	}
+
+	public int getPort() {
+		return this.port;
+	}
+
+	// The low edges belong to the region and the high edges to its
+	// neighbour, except at the edge of the map, so that every point on a
+	// boundary has exactly one owner.
+	public boolean contains(double lat, double lon) {
+		return lat >= this.minLat && (lat < this.maxLat || (lat == 90 && this.maxLat == 90)) && lon >= this.minLon
+				&& (lon < this.maxLon || (lon == 180 && this.maxLon == 180));
+	}
+
+	// Whether a search circle of dist meters around the point could reach into
+	// this region.
+	public boolean overlaps(double lat, double lon, int dist) {
+		double latSpan = UserProximityManager.latitudeSpan(dist);
+		double lonSpan = UserProximityManager.longitudeSpan(lat, lon, dist);
+		return lat - latSpan <= this.maxLat && lat + latSpan >= this.minLat
+				&& (lonSpan >= 180 || (lon - lonSpan <= this.maxLon && lon + lonSpan >= this.minLon));
+	}
+}
@@ -0,0 +1,287 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Splits the map into regions, each owned by one server node. Heartbeats for
+// a position in another node's region are forwarded to that node, and a
+// search whose circle reaches into other regions is sent to those nodes as
+// well, with the closest users from all of them merged together.
+//
+// Without a region config there is a single node that owns everything.
+public class RegionManager {
+	// The most users one search may ask for, which the nearby leaderboard
+	// ranks among. Pages of /search are far smaller.
+	public static final int MAX_NEAREST = 500;
+	private static final int TIMEOUT = 1000;
+	private static final int FORWARDING_THREADS = 16;
+	// Forwards wait here while every thread is busy, which is what happens
+	// when a neighbour is down or slow. Past this many they are dropped.
+	private static final int FORWARDING_QUEUE = 1000;
+
+	private ActiveUserManager activeMgr;
+	private UserProximityManager proxMgr;
+
+	private ArrayList<Region> regions = new ArrayList<Region>();
+	private Region local;
+	// sent with every request between nodes, so that clients can't use the
+	// internal endpoints
+	private String secret = "";
+
+	private ThreadPoolExecutor forwarders;
+	private AtomicLong dropped = new AtomicLong();
+
+	public RegionManager(ActiveUserManager am, UserProximityManager pm) {
+		this.activeMgr = am;
+		this.proxMgr = pm;
+	}
+
+	// Loads the regions from configFile, and takes the one named nodeName as
+	// this node's own. Each line of the file is either
+	// "node <name> <host> <port> <minLat> <maxLat> <minLon> <maxLon>" or
+	// "secret <value>". Blank lines and lines starting with '#' are ignored.
+	public RegionManager(ActiveUserManager am, UserProximityManager pm, String configFile, String nodeName)
+			throws IOException {
+		this(am, pm);
+
+		BufferedReader reader = new BufferedReader(new FileReader(configFile));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] parts = line.split("\\s+");
+				if (parts[0].equals("secret") && parts.length == 2) {
+					this.secret = parts[1];
+				} else if (parts[0].equals("node") && parts.length == 8) {
+					try {
+						this.regions.add(new Region(parts[1], parts[2], Integer.parseInt(parts[3]),
+								Double.parseDouble(parts[4]), Double.parseDouble(parts[5]),
+								Double.parseDouble(parts[6]), Double.parseDouble(parts[7])));
+					} catch (NumberFormatException e) {
+						throw new IOException("Bad line in region config: " + line);
+					}
+				} else {
+					throw new IOException("Bad line in region config: " + line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		for (Region r : this.regions) {
+			if (r.getName().equals(nodeName)) {
+				this.local = r;
+			}
+		}
+		if (this.local == null) {
+			throw new IOException("Node " + nodeName + " is not in the region config.");
+		}
+
+		// A dropped forward is cancelled, so that a search waiting on it
+		// leaves that region out straight away rather than at the timeout.
+		// A dropped heartbeat is simply lost, and the next one will do.
+		this.forwarders = new ThreadPoolExecutor(FORWARDING_THREADS, FORWARDING_THREADS, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(FORWARDING_QUEUE), new RejectedExecutionHandler() {
+					@Override
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+						RegionManager.this.dropped.incrementAndGet();
+						if (r instanceof Future) {
+							((Future<?>) r).cancel(false);
+						}
+					}
+				});
+	}
+
+	public boolean isPartitioned() {
+		return this.local != null;
+	}
+
+	public int getLocalPort() {
+		return this.local.getPort();
+	}
+
+	public boolean checkSecret(String secret) {
+		return this.isPartitioned() && this.secret.equals(secret);
+	}
+
+	// Records the heartbeat here if this node owns the position, and
+	// otherwise passes it on to the owner in the background.
+	public void addUser(final int userID, final double lat, final double lon, final int age, final boolean hasPic) {
+		final Region owner = this.owner(lat, lon);
+		if (owner == null) {
+			this.activeMgr.addUser(userID, lat, lon, age, hasPic);
+			return;
+		}
+
+		this.forwarders.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					HttpURLConnection conn = RegionManager.this.open(owner, "/internal/presence");
+					conn.setRequestProperty("user-id", "" + userID);
+					conn.setRequestProperty("coords", lat + "," + lon);
+					conn.setRequestProperty("age", "" + age);
+					conn.setRequestProperty("has-pic", "" + hasPic);
+					if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+						throw new IOException("Node " + owner.getName() + " refused the heartbeat.");
+					}
+					conn.disconnect();
+				} catch (IOException e) {
+					System.out.println("Could not forward heartbeat: " + e.getMessage());
+				}
+			}
+		});
+	}
+
+	// Returns the IDs of the k users closest to srcCoords, within dist meters,
+	// closest first, from every node whose region the search reaches into.
+	// The searching user, selfID, is never among them, and neither is anyone
+	// that filter rejects. Nodes that don't answer in time are left out.
+	public ArrayList<Integer> getNearbyUsers(String srcCoords, int dist, int k, int selfID, SearchFilter filter)
+			throws Exception {
+		return this.findNearest(UserProximityManager.parseCoords(srcCoords), dist, k, selfID, filter, -1, 0, null)
+				.toSortedList();
+	}
+
+	// Like getNearbyUsers, but only finds the users after afterID at
+	// afterDist in the order of the results, unless afterDist is below zero,
+	// and hands back the search itself so that its distances can be read.
+	// This node's users are looked for in pinned, from
+	// UserProximityManager.pin, if it isn't null. Other nodes always search
+	// their users as they are now.
+	public NearestUsers findNearest(final double[] src, final int dist, final int k, final int selfID,
+			final SearchFilter filter, final double afterDist, final int afterID, KDTree pinned) throws Exception {
+		if (k < 1 || k > MAX_NEAREST) {
+			throw ValidationException.BAD_RESULT_COUNT;
+		}
+
+		ArrayList<Future<ArrayList<String>>> replies = new ArrayList<Future<ArrayList<String>>>();
+		for (final Region r : this.regions) {
+			if (r == this.local || !r.overlaps(src[0], src[1], dist)) {
+				continue;
+			}
+			replies.add(this.forwarders.submit(new Callable<ArrayList<String>>() {
+				@Override
+				public ArrayList<String> call() throws IOException {
+					HttpURLConnection conn = RegionManager.this.open(r, "/internal/search");
+					conn.setRequestProperty("coords", src[0] + "," + src[1]);
+					conn.setRequestProperty("dist", "" + dist);
+					conn.setRequestProperty("k", "" + k);
+					conn.setRequestProperty("exclude-id", "" + selfID);
+					conn.setRequestProperty("min-age", "" + filter.getMinAge());
+					conn.setRequestProperty("max-age", "" + filter.getMaxAge());
+					conn.setRequestProperty("has-pic", "" + filter.isPicRequired());
+					if (afterDist >= 0) {
+						conn.setRequestProperty("after-dist", "" + afterDist);
+						conn.setRequestProperty("after-id", "" + afterID);
+					}
+					if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+						throw new IOException("Node " + r.getName() + " refused the search.");
+					}
+					ArrayList<String> lines = new ArrayList<String>();
+					BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream()));
+					try {
+						String line;
+						while ((line = reader.readLine()) != null) {
+							lines.add(line);
+						}
+					} finally {
+						reader.close();
+					}
+					return lines;
+				}
+			}));
+		}
+
+		NearestUsers near = new NearestUsers(src[0], src[1], dist, k, selfID, filter);
+		near.startAfter(afterDist, afterID);
+		if (pinned != null) {
+			pinned.nearest(near);
+		} else {
+			this.proxMgr.findNearest(near);
+		}
+
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		for (Future<ArrayList<String>> reply : replies) {
+			try {
+				long wait = Math.max(0, deadline - System.currentTimeMillis());
+				for (String line : reply.get(wait, TimeUnit.MILLISECONDS)) {
+					String[] parts = line.split(" ");
+					int userID = Integer.parseInt(parts[0]);
+					// A user who just crossed a boundary can briefly be known
+					// to two nodes.
+					if (!near.contains(userID)) {
+						near.offer(userID, Double.parseDouble(parts[1]));
+					}
+				}
+			} catch (Exception e) {
+				reply.cancel(true);
+				System.out.println("Could not search a neighbouring region: " + e.getMessage());
+			}
+		}
+
+		return near;
+	}
+
+	// Answers a search sent by another node from this node's users only, as
+	// lines of "<userID> <distance>", closest first. afterDist and afterID
+	// are as in findNearest.
+	public String searchLocal(String srcCoords, int dist, int k, int excludeID, SearchFilter filter,
+			double afterDist, int afterID) throws Exception {
+		if (k < 1 || k > MAX_NEAREST) {
+			throw ValidationException.BAD_RESULT_COUNT;
+		}
+		double[] src = UserProximityManager.parseCoords(srcCoords);
+		NearestUsers near = new NearestUsers(src[0], src[1], dist, k, excludeID, filter);
+		near.startAfter(afterDist, afterID);
+		this.proxMgr.findNearest(near);
+
+		StringBuilder sb = new StringBuilder();
+		int n = near.sort();
+		for (int i = 0; i < n; i++) {
+			sb.append(near.getID(i)).append(' ').append(near.getDistance(i)).append('\n');
+		}
+		return sb.toString();
+	}
+
+	public String getStats() {
+		if (this.forwarders == null) {
+			return "";
+		}
+		return "region.active " + this.forwarders.getActiveCount() + "\nregion.queued "
+				+ this.forwarders.getQueue().size() + "\nregion.dropped " + this.dropped.get() + "\n";
+	}
+
+	// Returns the node that owns the position, or null if this node does.
+	// Positions outside every region are kept wherever they arrive.
+	private Region owner(double lat, double lon) {
+		for (Region r : this.regions) {
+			if (r.contains(lat, lon)) {
+				return r == this.local ? null : r;
+			}
+		}
+		return null;
+	}
+
+	private HttpURLConnection open(Region r, String path) throws IOException {
+		URL url = new URL("http", r.getHost(), r.getPort(), path);
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setConnectTimeout(TIMEOUT);
+		conn.setReadTimeout(TIMEOUT);
+		conn.setRequestProperty("node-secret", this.secret);
+		return conn;
+	}
+}
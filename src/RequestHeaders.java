@@ -0,0 +1,83 @@
+import com.sun.net.httpserver.Headers;
+
+// Reads the headers of a request, turning anything missing or malformed
+// into a ValidationException. Numbers are parsed here by hand, since
+// Integer.parseInt reports bad input by building a NumberFormatException,
+// stack trace and all.
+public class RequestHeaders {
+	private Headers headers;
+
+	public RequestHeaders(Headers headers) {
+		this.headers = headers;
+	}
+
+	public Headers getHeaders() {
+		return this.headers;
+	}
+
+	// Returns the header, or null if it wasn't sent.
+	public String get(String name) {
+		return this.headers.getFirst(name);
+	}
+
+	public String require(String name) throws ValidationException {
+		String value = this.headers.getFirst(name);
+		if (value == null) {
+			throw ValidationException.MISSING_FIELDS;
+		}
+		return value;
+	}
+
+	public int requireInt(String name) throws ValidationException {
+		return parseInt(this.require(name));
+	}
+
+	// Returns the header as a number, or defaultValue if it wasn't sent.
+	public int getInt(String name, int defaultValue) throws ValidationException {
+		String value = this.headers.getFirst(name);
+		return value == null ? defaultValue : parseInt(value);
+	}
+
+	// Returns the header as a number, or defaultValue if it wasn't sent,
+	// which has to be between min and max.
+	public int getInt(String name, int defaultValue, int min, int max) throws ValidationException {
+		int value = this.getInt(name, defaultValue);
+		if (value < min || value > max) {
+			throw new ValidationException("The " + name + " header must be between " + min + " and " + max + ".");
+		}
+		return value;
+	}
+
+	// Only "true" counts as true, as with Boolean.parseBoolean.
+	public boolean getBoolean(String name) {
+		return "true".equalsIgnoreCase(this.headers.getFirst(name));
+	}
+
+	public static int parseInt(String s) throws ValidationException {
+		int len = s.length();
+		int i = 0;
+		boolean negative = false;
+		if (len > 0 && (s.charAt(0) == '-' || s.charAt(0) == '+')) {
+			negative = s.charAt(0) == '-';
+			i = 1;
+		}
+		if (i == len) {
+			throw ValidationException.BAD_NUMBER;
+		}
+		// built up as a negative number, which has the room for MIN_VALUE
+		int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+		int result = 0;
+		for (; i < len; i++) {
+			int digit = s.charAt(i) - '0';
+			if (digit < 0 || digit > 9 || result < limit / 10) {
+				throw ValidationException.BAD_NUMBER;
+			}
+			result *= 10;
+			if (result < limit + digit) {
+				throw ValidationException.BAD_NUMBER;
+			}
+			result -= digit;
+		}
+		return negative ? result : -result;
+	}
+}
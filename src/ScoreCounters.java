@@ -0,0 +1,188 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Adds up XP and points in memory, in stripes that are each locked on their
+// own, and writes them to the Users table in one transaction every few
+// seconds, rather than one transaction per increment.
+// Profiles read from the database have the amounts not yet written added
+// on. A flush holds the write lock while it commits and forgets what it
+// wrote, and profile reads hold the read lock, so a read never counts an
+// amount twice or misses it.
+public class ScoreCounters implements Runnable {
+	private static final int FLUSH_INTERVAL = 10000;
+	private static final int STRIPES = 64;
+
+	private Leaderboard leaderboard;
+	private Stripe[] stripes = new Stripe[STRIPES];
+	private ReentrantReadWriteLock flushLock = new ReentrantReadWriteLock();
+	private Object flushing = new Object();
+	private AtomicLong flushes = new AtomicLong();
+	private AtomicLong failures = new AtomicLong();
+
+	// Amounts per user, as { exp, points }.
+	private static class Stripe {
+		private HashMap<Integer, long[]> pending = new HashMap<Integer, long[]>();
+		// what the flush under way is writing
+		private HashMap<Integer, long[]> inFlight = new HashMap<Integer, long[]>();
+	}
+
+	// Points go on the leaderboard as soon as they are added, as they do
+	// on profiles.
+	public ScoreCounters(Leaderboard leaderboard) {
+		this.leaderboard = leaderboard;
+		for (int i = 0; i < STRIPES; i++) {
+			this.stripes[i] = new Stripe();
+		}
+	}
+
+	// Adds to both the user's XP and their points.
+	public void addXP(int userID, int xp) {
+		this.add(userID, xp, xp);
+	}
+
+	public void addPoints(int userID, int points) {
+		this.add(userID, 0, points);
+	}
+
+	public void lockForRead() {
+		this.flushLock.readLock().lock();
+	}
+
+	public void unlockForRead() {
+		this.flushLock.readLock().unlock();
+	}
+
+	// Returns usr with whatever hasn't been written yet added on. Must be
+	// called between lockForRead and unlockForRead, along with the read of
+	// usr itself.
+	public User merge(User usr) {
+		Stripe stripe = this.stripes[usr.getUserID() & (STRIPES - 1)];
+		long exp = 0;
+		long points = 0;
+		synchronized (stripe) {
+			long[] pending = stripe.pending.get(usr.getUserID());
+			if (pending != null) {
+				exp += pending[0];
+				points += pending[1];
+			}
+			long[] inFlight = stripe.inFlight.get(usr.getUserID());
+			if (inFlight != null) {
+				exp += inFlight[0];
+				points += inFlight[1];
+			}
+		}
+		if (exp == 0 && points == 0) {
+			return usr;
+		}
+		return usr.addScores(exp, points);
+	}
+
+	// Wakes up every 10 seconds and writes out what has built up.
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(FLUSH_INTERVAL);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			this.flush();
+		}
+	}
+
+	// Writes everything built up so far in one transaction. If that fails,
+	// the amounts are kept for the next try.
+	public void flush() {
+		synchronized (this.flushing) {
+			HashMap<Integer, long[]> batch = new HashMap<Integer, long[]>();
+			for (Stripe stripe : this.stripes) {
+				synchronized (stripe) {
+					stripe.inFlight = stripe.pending;
+					stripe.pending = new HashMap<Integer, long[]>();
+					batch.putAll(stripe.inFlight);
+				}
+			}
+			if (batch.isEmpty()) {
+				return;
+			}
+
+			Storage db = StorageManager.open();
+			boolean committed = false;
+			try {
+				db.startTransaction();
+				for (Map.Entry<Integer, long[]> entry : batch.entrySet()) {
+					db.addScores(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+				}
+				this.flushLock.writeLock().lock();
+				try {
+					db.endTransaction(true);
+					committed = true;
+					this.flushes.incrementAndGet();
+					this.forgetInFlight(false);
+				} finally {
+					this.flushLock.writeLock().unlock();
+				}
+			} catch (Exception e) {
+				System.out.println("Could not write XP and points: " + e.getMessage());
+				e.printStackTrace();
+				this.failures.incrementAndGet();
+				if (!committed) {
+					try {
+						db.endTransaction(false);
+					} catch (Exception e1) {
+						System.out.println(e1.getMessage());
+					}
+					this.forgetInFlight(true);
+				}
+			}
+		}
+	}
+
+	public String getStats() {
+		int pending = 0;
+		for (Stripe stripe : this.stripes) {
+			synchronized (stripe) {
+				pending += stripe.pending.size();
+			}
+		}
+		return "scores.pending " + pending + "\nscores.flushes " + this.flushes.get() + "\nscores.failures "
+				+ this.failures.get() + "\n";
+	}
+
+	private void add(int userID, int exp, int points) {
+		Stripe stripe = this.stripes[userID & (STRIPES - 1)];
+		synchronized (stripe) {
+			long[] amounts = stripe.pending.get(userID);
+			if (amounts == null) {
+				amounts = new long[2];
+				stripe.pending.put(userID, amounts);
+			}
+			amounts[0] += exp;
+			amounts[1] += points;
+		}
+		this.leaderboard.add(userID, points);
+	}
+
+	// Drops the amounts the flush was writing, or if it failed, puts them
+	// back with the pending ones.
+	private void forgetInFlight(boolean keep) {
+		for (Stripe stripe : this.stripes) {
+			synchronized (stripe) {
+				if (keep) {
+					for (Map.Entry<Integer, long[]> entry : stripe.inFlight.entrySet()) {
+						long[] amounts = stripe.pending.get(entry.getKey());
+						if (amounts == null) {
+							stripe.pending.put(entry.getKey(), entry.getValue());
+						} else {
+							amounts[0] += entry.getValue()[0];
+							amounts[1] += entry.getValue()[1];
+						}
+					}
+				}
+				stripe.inFlight = new HashMap<Integer, long[]>();
+			}
+		}
+	}
+}
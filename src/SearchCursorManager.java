@@ -0,0 +1,103 @@
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Hands out opaque cursors for paging through search results. A cursor
+// remembers the search, this node's users as they were when its first page
+// was found, and where its last page ended, as the distance and ID of the
+// last user on it. The next page is the same search of those same users
+// for the ones after that point, which skips whatever the earlier pages
+// covered, so every page costs about one page of searching and nobody moves
+// between pages. Users on other nodes are searched as they are now. A
+// cursor is forgotten a couple of minutes after it was handed out.
+public class SearchCursorManager {
+	private static final long CURSOR_TTL = 120000;
+
+	private ConcurrentHashMap<String, Cursor> cursors = new ConcurrentHashMap<String, Cursor>();
+	private SecureRandom random = new SecureRandom();
+	private volatile long lastPurge = System.currentTimeMillis();
+
+	public static class Cursor {
+		private int userID;
+		private double[] coords;
+		private int dist;
+		private SearchFilter filter;
+		private double afterDist;
+		private int afterID;
+		private KDTree users;
+		private long expires;
+
+		public double[] getCoords() {
+			return this.coords;
+		}
+
+		public int getDist() {
+			return this.dist;
+		}
+
+		public SearchFilter getFilter() {
+			return this.filter;
+		}
+
+		public double getAfterDist() {
+			return this.afterDist;
+		}
+
+		public int getAfterID() {
+			return this.afterID;
+		}
+
+		public KDTree getUsers() {
+			return this.users;
+		}
+	}
+
+	// Returns a cursor for the rest of a search of users, after the user
+	// afterID at afterDist meters.
+	public String save(int userID, double[] coords, int dist, SearchFilter filter, double afterDist, int afterID,
+			KDTree users) {
+		long now = System.currentTimeMillis();
+		if (now - this.lastPurge > CURSOR_TTL) {
+			this.lastPurge = now;
+			this.purge(now);
+		}
+
+		Cursor c = new Cursor();
+		c.userID = userID;
+		c.coords = coords;
+		c.dist = dist;
+		c.filter = filter;
+		c.afterDist = afterDist;
+		c.afterID = afterID;
+		c.users = users;
+		c.expires = now + CURSOR_TTL;
+
+		byte[] bytes = new byte[16];
+		this.random.nextBytes(bytes);
+		StringBuilder token = new StringBuilder();
+		for (byte b : bytes) {
+			token.append(String.format("%02x", b));
+		}
+		this.cursors.put(token.toString(), c);
+		return token.toString();
+	}
+
+	// Returns the search the cursor continues. A cursor can only be used
+	// once, and only by the user it was given to.
+	public Cursor take(String token, int userID) throws ValidationException {
+		Cursor c = this.cursors.remove(token);
+		if (c == null || c.userID != userID || c.expires < System.currentTimeMillis()) {
+			throw ValidationException.INVALID_CURSOR;
+		}
+		return c;
+	}
+
+	private void purge(long now) {
+		Iterator<Cursor> iter = this.cursors.values().iterator();
+		while (iter.hasNext()) {
+			if (iter.next().expires < now) {
+				iter.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,30 @@
+// Profile conditions that a search result must meet. These are checked
+// against the copies of the profile fields kept with each user's position,
+// while the search is running.
+public class SearchFilter {
+	private int minAge;
+	private int maxAge;
+	private boolean picRequired;
+
+	public SearchFilter(int minAge, int maxAge, boolean picRequired) {
+		this.minAge = minAge;
+		this.maxAge = maxAge;
+		this.picRequired = picRequired;
+	}
+
+	public int getMinAge() {
+		return this.minAge;
+	}
+
+	public int getMaxAge() {
+		return this.maxAge;
+	}
+
+	public boolean isPicRequired() {
+		return this.picRequired;
+	}
+
+	public boolean accepts(int age, boolean hasPic) {
+		return age >= this.minAge && age <= this.maxAge && (hasPic || !this.picRequired);
+	}
+}
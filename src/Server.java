@@ -5,8 +5,10 @@ import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
 
-import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
@@ -17,12 +19,50 @@ public class Server {
 	private XStream xmlStream = new XStream(new DomDriver());
 	private static int SERVER_PORT_NUMBER = 49000;
 	private static final int MAX_WAITING_CONNECTIONS = 300;
+	// How many requests are handled at once. Set with -Dhttp.threads=128.
+	private static final int REQUEST_THREADS = Integer.getInteger("http.threads", 64);
+	// How many passwords are hashed at once, so that logins can't take
+	// every core. Set with -Dhashing.threads=4.
+	private static final int HASHING_THREADS = Integer.getInteger("hashing.threads",
+			Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+	// Which proximity engine to search with: "tree" or "grid". Set with
+	// -Dproximity.engine=grid to compare the two under real load.
+	private static final String PROXIMITY_ENGINE = System.getProperty("proximity.engine", "tree");
+	// How many seconds a user stays in search results after their last
+	// heartbeat. Set with -Dpresence.ttl=60.
+	private static final int PRESENCE_TTL = Integer.getInteger("presence.ttl", 30);
+	// Where active users are saved, so that a restart doesn't forget them.
+	// Set with -Dpresence.snapshot=<file>; each node needs its own file.
+	private static final String PRESENCE_SNAPSHOT = "database/presence.snapshot";
+	// Where messages are kept until delivered: "mailbox" keeps them in
+	// memory backed by a log file, "database" in the Messages table. Nodes
+	// of a partitioned setup share the database, so they default to it.
+	// Set with -Dmessage.engine=database and -Dmessage.log=<file>.
+	private static final String MESSAGE_LOG = "database/messages.log";
+	// How many seconds a session lasts without being used. Set with
+	// -Dsession.ttl=86400.
+	private static final int SESSION_TTL = Integer.getInteger("session.ttl", 86400);
+	// Where users and messages are stored: "sqlite", or "memory" to
+	// benchmark without the disk. Set with -Dstorage.engine=memory.
+	private static final String STORAGE_ENGINE = System.getProperty("storage.engine", "sqlite");
+	// How many seconds a message waits for its recipient before it fails.
+	// Set with -Dmessage.ttl=86400.
+	private static final int MESSAGE_TTL = Integer.getInteger("message.ttl", 604800);
 	private HttpServer server;
 	private ActiveUserManager activeMgr;
 	private UserProximityManager proxMgr;
+	private RegionManager regionMgr;
+	private SearchCursorManager cursorMgr = new SearchCursorManager();
+	private NearbyTracker nearbyTracker = new NearbyTracker();
+	private WriteQueue writeQueue = new WriteQueue();
+	private MessageStore messageStore;
+	private LatencyFilter latency = new LatencyFilter();
+	private MessageSweeper sweeper;
+	private SessionManager sessionMgr = new SessionManager(SESSION_TTL * 1000L);
+	private PasswordHasher hasher = new PasswordHasher(HASHING_THREADS);
 
 	public static void main(String[] args) {
-		Database.initialize();
+		StorageManager.initialize(STORAGE_ENGINE);
 		new Server().run();
 	}
 
@@ -38,8 +78,64 @@ public class Server {
 	 * @throws IOException
 	 */
 	public void run() {
-		this.activeMgr = new ActiveUserManager();
-		this.proxMgr = new UserProximityManager(this.activeMgr);
+		this.activeMgr = new ActiveUserManager(PRESENCE_TTL * 1000L);
+		this.proxMgr = new UserProximityManager(this.activeMgr, PROXIMITY_ENGINE);
+
+		// When running as one of several nodes, each owning a region of the
+		// map, the regions and this node's name come from
+		// -Dregion.config=<file> -Dnode.name=<name>, and the port comes from
+		// this node's entry in the file.
+		String regionConfig = System.getProperty("region.config");
+		if (regionConfig == null) {
+			this.regionMgr = new RegionManager(this.activeMgr, this.proxMgr);
+		} else {
+			try {
+				this.regionMgr = new RegionManager(this.activeMgr, this.proxMgr, regionConfig,
+						System.getProperty("node.name"));
+			} catch (IOException e) {
+				System.out.println("Could not load region config: " + e.getMessage());
+				e.printStackTrace();
+				return;
+			}
+			SERVER_PORT_NUMBER = this.regionMgr.getLocalPort();
+		}
+
+		String defaultSnapshot = regionConfig == null ? PRESENCE_SNAPSHOT
+				: "database/presence-" + System.getProperty("node.name") + ".snapshot";
+		String snapshotFile = System.getProperty("presence.snapshot", defaultSnapshot);
+		final PresenceSnapshotter snapshotter = new PresenceSnapshotter(this.activeMgr, snapshotFile);
+		try {
+			long start = System.currentTimeMillis();
+			int loaded = snapshotter.load();
+			System.out.println("Loaded " + loaded + " users from the presence snapshot in "
+					+ (System.currentTimeMillis() - start) + "ms");
+		} catch (IOException e) {
+			System.out.println("Could not load presence snapshot: " + e.getMessage());
+			e.printStackTrace();
+		}
+
+		String messageEngine = System.getProperty("message.engine", regionConfig == null ? "mailbox" : "database");
+		if (messageEngine.equals("mailbox")) {
+			MailboxManager mailboxMgr = new MailboxManager(System.getProperty("message.log", MESSAGE_LOG));
+			try {
+				if (mailboxMgr.hasLog()) {
+					System.out.println("Loaded " + mailboxMgr.load() + " undelivered messages from the message log");
+				} else {
+					this.importMessages(mailboxMgr);
+				}
+			} catch (Exception e) {
+				System.out.println("Could not load messages: " + e.getMessage());
+				e.printStackTrace();
+				return;
+			}
+			new Thread(mailboxMgr).start();
+			this.messageStore = mailboxMgr;
+		} else if (messageEngine.equals("database")) {
+			this.messageStore = new DatabaseMessageStore(this.writeQueue);
+		} else {
+			throw new IllegalArgumentException("Unknown message engine: " + messageEngine);
+		}
+		this.sweeper = new MessageSweeper(this.messageStore, this.latency, MESSAGE_TTL * 1000L);
 
 		// TODO comment or uncomment this line when you need to reset the DB
 		// try {
@@ -50,6 +146,24 @@ public class Server {
 
 		new Thread(this.activeMgr).start();
 		new Thread(proxMgr).start();
+		new Thread(snapshotter).start();
+		new Thread(this.writeQueue).start();
+		new Thread(StorageManager.getScores()).start();
+		new Thread(this.sweeper).start();
+
+		// one last snapshot on the way down, so a rolling restart loses
+		// nobody, and the XP and points not yet written
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				try {
+					snapshotter.save();
+				} catch (IOException e) {
+					System.out.println("Could not save presence snapshot: " + e.getMessage());
+				}
+				StorageManager.getScores().flush();
+			}
+		});
 
 		try {
 			// Creates a new HTTP Server with a new socket to await incoming
@@ -61,19 +175,29 @@ public class Server {
 			return;
 		}
 
-		server.setExecutor(null); // use the default executor
+		// Handlers spend much of their time waiting, on the write queue or
+		// on password hashing, so each request gets a thread of its own
+		// rather than sharing the one the server started with.
+		server.setExecutor(Executors.newFixedThreadPool(REQUEST_THREADS));
 
 		// creates separate HTTP handlers to handle each type of request.
-		server.createContext("/heartbeat", heartbeatHandler);
+		// the requests that write messages are the ones the sweeper competes
+		// with, so they're the ones it watches
+		server.createContext("/heartbeat", heartbeatHandler).getFilters().add(this.latency);
 		server.createContext("/user/register", registrationHandler);
 		server.createContext("/user/login", loginHandler);
 		server.createContext("/user/delete", profileDeleteHandler);
 		server.createContext("/user/update", profileUpdateHandler);
-		server.createContext("/message/send", sendMessageHandler);
+		server.createContext("/message/send", sendMessageHandler).getFilters().add(this.latency);
 		server.createContext("/users/pic/put", updatePicHandler);
 		server.createContext("/users/pic/delete", deletePicHandler);
 		server.createContext("/users/pic", getPicHandler);
 		server.createContext("/search", searchHandler);
+		server.createContext("/leaderboard", leaderboardHandler);
+		server.createContext("/leaderboard/nearby", nearbyLeaderboardHandler);
+		server.createContext("/internal/presence", internalPresenceHandler);
+		server.createContext("/internal/search", internalSearchHandler);
+		server.createContext("/stats", statsHandler);
 
 		// TODO consider adding this in eventually
 		// server.createContext("/users/username", getUserByNameHandler);
@@ -82,45 +206,78 @@ public class Server {
 	}
 
 	// authenticate
-	// parse gps coords from header, parse distance, get results from
-	// datastructure, remove self from it, get profiles, build a results obj,
-	// write to xml
+	// parse gps coords from header, parse distance and k, get the k closest
+	// results from the datastructure, leaving self out, get profiles in
+	// order of distance, build a results obj, write to xml
+	// if a cursor is given instead of coords and distance, the next k
+	// results of that earlier search are returned. Whenever more results
+	// remain, a cursor for them is sent back in the "cursor" header.
 	private HttpHandler searchHandler = new HttpHandler() {
 
 		@Override
 		public void handle(HttpExchange exchange) throws IOException {
-			Database db = new Database();
+			Storage db = StorageManager.open();
 			ArrayList<User> finRslts;
+			String nextCursor;
 			try {
 
-				Headers headers = exchange.getRequestHeaders();
-				String srcCoords = headers.getFirst("coords");
-				String username = headers.getFirst("username");
-				String password = headers.getFirst("password");
-				String distString = headers.getFirst("dist");
-
-				if (srcCoords == null || username == null || password == null || distString == null) {
-					throw new Exception("Not all of the proper header fields were included.");
+				RequestHeaders headers = new RequestHeaders(exchange.getRequestHeaders());
+				// optional: how many of the closest users to return
+				int k = headers.getInt("k", UserProximityManager.DEFAULT_RESULTS, 1, UserProximityManager.MAX_RESULTS);
+				// optional: continues an earlier search
+				String cursor = headers.get("cursor");
+
+				int userID = Server.this.authenticate(headers);
+
+				double[] src;
+				int dist;
+				SearchFilter filter;
+				double afterDist = -1;
+				int afterID = 0;
+				KDTree pinned = null;
+				if (cursor == null) {
+					src = UserProximityManager.parseCoords(headers.require("coords"));
+					dist = headers.requireInt("dist");
+					// optional filters: an age range, and "true" to only find
+					// users with a picture
+					int minAge = headers.getInt("min-age", 0);
+					int maxAge = headers.getInt("max-age", Integer.MAX_VALUE);
+					filter = new SearchFilter(minAge, maxAge, headers.getBoolean("has-pic"));
+				} else {
+					SearchCursorManager.Cursor c = Server.this.cursorMgr.take(cursor, userID);
+					src = c.getCoords();
+					dist = c.getDist();
+					filter = c.getFilter();
+					afterDist = c.getAfterDist();
+					afterID = c.getAfterID();
+					pinned = c.getUsers();
 				}
-
-				int dist = Integer.parseInt(distString);
-				int userID = Server.this.authenticate(username, password);
-
-				ArrayList<Integer> intermediateRslts = Server.this.proxMgr.getNearbyUsers(srcCoords, dist);
-				finRslts = new ArrayList<User>();
-
-				db.startTransaction();
-				for (Integer id : intermediateRslts) {
-					if (id != userID) {
-						User usr = db.getUserByID(id);
-						finRslts.add(usr);
+				// one more than the page, to tell whether there is a next one
+				NearestUsers near = Server.this.regionMgr.findNearest(src, dist, k + 1, userID, filter, afterDist,
+						afterID, pinned);
+				int found = near.sort();
+				ArrayList<Integer> intermediateRslts = new ArrayList<Integer>(k);
+				for (int i = 0; i < Math.min(k, found); i++) {
+					intermediateRslts.add(near.getID(i));
+				}
+				nextCursor = null;
+				if (found > k) {
+					// the users are pinned just after the first page is
+					// found, and later pages go through the same ones
+					if (pinned == null) {
+						pinned = Server.this.proxMgr.pin(src[0], src[1], dist);
 					}
+					nextCursor = Server.this.cursorMgr.save(userID, src, dist, filter, near.getDistance(k - 1),
+							near.getID(k - 1), pinned);
 				}
+				db.startReadTransaction();
+				// the search never returns the caller, and anyone deleted
+				// since they were found is simply left out here
+				finRslts = db.getUsersByIDs(intermediateRslts);
 				db.endTransaction(true);
 
 			} catch (Exception e) {
-				System.out.println(e.getMessage());
-				e.printStackTrace();
+				int status = Server.this.logFailure(e);
 				try {
 					// if any exception arise, the transaction is rolled back.
 					db.endTransaction(false);
@@ -129,18 +286,117 @@ public class Server {
 					e1.printStackTrace();
 				}
 				// sends a 'fail' HTTP response in return if any issue comes up.
-				exchange.sendResponseHeaders(HttpURLConnection.HTTP_INTERNAL_ERROR, -1);
+				exchange.sendResponseHeaders(status, -1);
 				return;
 			}
 
 			// since the request was successful, an HTTP response is sent back
 			// to the client with the result attached.
+			if (nextCursor != null) {
+				exchange.getResponseHeaders().set("cursor", nextCursor);
+			}
 			exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
 			xmlStream.toXML(finRslts, exchange.getResponseBody());
 			exchange.getResponseBody().close();
 		}
 	};
 
+	// Returns the profiles of the users with the most points, best first.
+	// The "n" header asks for that many, and the "rank" response header is
+	// the place of the user given in "user-id", or of the caller, with 0
+	// meaning they aren't ranked.
+	private HttpHandler leaderboardHandler = new HttpHandler() {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			Storage db = StorageManager.open();
+			ArrayList<User> top;
+			int rank;
+			try {
+
+				RequestHeaders headers = new RequestHeaders(exchange.getRequestHeaders());
+				int n = headers.getInt("n", Leaderboard.DEFAULT_RESULTS, 1, Leaderboard.MAX_RESULTS);
+
+				int userID = Server.this.authenticate(headers);
+				int rankUserID = headers.getInt("user-id", userID);
+
+				Leaderboard leaderboard = StorageManager.getLeaderboard();
+				ArrayList<Integer> topIDs = leaderboard.top(n);
+				rank = leaderboard.rank(rankUserID);
+
+				db.startReadTransaction();
+				top = db.getUsersByIDs(topIDs);
+				db.endTransaction(true);
+
+			} catch (Exception e) {
+				int status = Server.this.logFailure(e);
+				try {
+					db.endTransaction(false);
+				} catch (Exception e1) {
+					System.out.println(e1.getMessage());
+					e1.printStackTrace();
+				}
+				exchange.sendResponseHeaders(status, -1);
+				return;
+			}
+
+			exchange.getResponseHeaders().set("rank", "" + rank);
+			exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
+			xmlStream.toXML(top, exchange.getResponseBody());
+			exchange.getResponseBody().close();
+		}
+	};
+
+	// The same, but only among the users a search from "coords" within
+	// "dist" would find, and the caller. The "rank" response header is the
+	// caller's place among them.
+	private HttpHandler nearbyLeaderboardHandler = new HttpHandler() {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			Storage db = StorageManager.open();
+			ArrayList<User> top;
+			int rank;
+			try {
+
+				RequestHeaders headers = new RequestHeaders(exchange.getRequestHeaders());
+				String srcCoords = headers.require("coords");
+				int dist = headers.requireInt("dist");
+				int n = headers.getInt("n", Leaderboard.DEFAULT_RESULTS, 1, Leaderboard.MAX_RESULTS);
+
+				int userID = Server.this.authenticate(headers);
+
+				ArrayList<Integer> nearby = Server.this.regionMgr.getNearbyUsers(srcCoords, dist,
+						RegionManager.MAX_NEAREST, userID, new SearchFilter(0, Integer.MAX_VALUE, false));
+				if (!nearby.contains(userID)) {
+					nearby.add(userID);
+				}
+				ArrayList<Integer> ranked = StorageManager.getLeaderboard().rankAmong(nearby);
+				rank = ranked.indexOf(userID) + 1;
+
+				db.startReadTransaction();
+				top = db.getUsersByIDs(ranked.subList(0, Math.min(n, ranked.size())));
+				db.endTransaction(true);
+
+			} catch (Exception e) {
+				int status = Server.this.logFailure(e);
+				try {
+					db.endTransaction(false);
+				} catch (Exception e1) {
+					System.out.println(e1.getMessage());
+					e1.printStackTrace();
+				}
+				exchange.sendResponseHeaders(status, -1);
+				return;
+			}
+
+			exchange.getResponseHeaders().set("rank", "" + rank);
+			exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
+			xmlStream.toXML(top, exchange.getResponseBody());
+			exchange.getResponseBody().close();
+		}
+	};
+
 	// authenticate
 	// parse the userID from the header and write the file to the response
 	private HttpHandler getPicHandler = new HttpHandler() {
@@ -150,30 +406,21 @@ public class Server {
 			File f;
 			try {
 
-				Headers headers = exchange.getRequestHeaders();
-
-				String username = headers.getFirst("username");
-				String password = headers.getFirst("password");
-				String picUserIDString = headers.getFirst("pic-user-id");
+				RequestHeaders headers = new RequestHeaders(exchange.getRequestHeaders());
 
-				if (username == null || password == null || picUserIDString == null) {
-					throw new Exception("Not all of the proper header fields were included.");
-				}
+				int picUserID = headers.requireInt("pic-user-id");
 
 				// This line is still needed. Even though we don't need their
 				// ID, we need to make sure they are a registered user. This
 				// will throw an exception if they aren't.
-				Server.this.authenticate(username, password);
-
-				int picUserID = Integer.parseInt(picUserIDString);
+				Server.this.authenticate(headers);
 
 				f = new File("pictures/" + picUserID);
 
 			} catch (Exception e) {
-				System.out.println(e.getMessage());
-				e.printStackTrace();
+				int status = Server.this.logFailure(e);
 				// sends a 'fail' HTTP response in return if any issue comes up.
-				exchange.sendResponseHeaders(HttpURLConnection.HTTP_INTERNAL_ERROR, -1);
+				exchange.sendResponseHeaders(status, -1);
 				return;
 			}
 
@@ -195,44 +442,27 @@ public class Server {
 
 		@Override
 		public void handle(HttpExchange exchange) throws IOException {
-			Database db = new Database();
 			int userID;
 
 			try {
 
-				Headers headers = exchange.getRequestHeaders();
-
-				String username = headers.getFirst("username");
-				String password = headers.getFirst("password");
-				// String fileExtension = headers.getFirst("file-extension");
+				RequestHeaders headers = new RequestHeaders(exchange.getRequestHeaders());
 
-				if (username == null || password == null) {
-					throw new Exception("Not all of the proper header fields were included.");
-				}
+				// String fileExtension = headers.get("file-extension");
 
-				userID = Server.this.authenticate(username, password);
+				userID = Server.this.authenticate(headers);
 
 				File f = new File("pictures/" + userID);
 
-				db.startTransaction();
-				db.updateHasPic(userID, true);
-				db.endTransaction(true);
+				Server.this.setHasPic(userID, true);
 
 				Files.copy(exchange.getRequestBody(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
 				exchange.getRequestBody().close();
 
 			} catch (Exception e) {
-				System.out.println(e.getMessage());
-				e.printStackTrace();
-				try {
-					// if any exception arise, the transaction is rolled back.
-					db.endTransaction(false);
-				} catch (Exception e1) {
-					System.out.println(e1.getMessage());
-					e1.printStackTrace();
-				}
+				int status = Server.this.logFailure(e);
 				// sends a 'fail' HTTP response in return if any issue comes up.
-				exchange.sendResponseHeaders(HttpURLConnection.HTTP_INTERNAL_ERROR, -1);
+				exchange.sendResponseHeaders(status, -1);
 				return;
 			}
 
@@ -252,42 +482,24 @@ public class Server {
 
 		@Override
 		public void handle(HttpExchange exchange) throws IOException {
-			Database db = new Database();
 			int userID;
 
 			try {
 
-				Headers headers = exchange.getRequestHeaders();
+				RequestHeaders headers = new RequestHeaders(exchange.getRequestHeaders());
 
-				String username = headers.getFirst("username");
-				String password = headers.getFirst("password");
-
-				if (username == null || password == null) {
-					throw new Exception("Not all of the proper header fields were included.");
-				}
-
-				userID = Server.this.authenticate(username, password);
+				userID = Server.this.authenticate(headers);
 
 				File f = new File("pictures/" + userID);
 
-				db.startTransaction();
-				db.updateHasPic(userID, false);
-				db.endTransaction(true);
+				Server.this.setHasPic(userID, false);
 
 				Files.deleteIfExists(f.toPath());
 
 			} catch (Exception e) {
-				System.out.println(e.getMessage());
-				e.printStackTrace();
-				try {
-					// if any exception arise, the transaction is rolled back.
-					db.endTransaction(false);
-				} catch (Exception e1) {
-					System.out.println(e1.getMessage());
-					e1.printStackTrace();
-				}
+				int status = Server.this.logFailure(e);
 				// sends a 'fail' HTTP response in return if any issue comes up.
-				exchange.sendResponseHeaders(HttpURLConnection.HTTP_INTERNAL_ERROR, -1);
+				exchange.sendResponseHeaders(status, -1);
 				return;
 			}
 
@@ -304,41 +516,27 @@ public class Server {
 
 		@Override
 		public void handle(HttpExchange exchange) throws IOException {
-			Database db = new Database();
 			int msgID;
 
 			try {
 
-				Headers headers = exchange.getRequestHeaders();
+				RequestHeaders headers = new RequestHeaders(exchange.getRequestHeaders());
 
-				String username = headers.getFirst("username");
-				String password = headers.getFirst("password");
-				String toUserIDString = headers.getFirst("to-user-id");
-				String contents = headers.getFirst("contents");
+				int toUserID = headers.requireInt("to-user-id");
+				String contents = headers.require("contents");
 
-				if (username == null || password == null || toUserIDString == null || contents == null || contents.trim().isEmpty()) {
-					throw new Exception("Not all of the proper header fields were included.");
+				if (contents.trim().isEmpty()) {
+					throw ValidationException.MISSING_FIELDS;
 				}
 
-				int userID = Server.this.authenticate(username, password);
-				int toUserID = Integer.parseInt(toUserIDString);				
+				int userID = Server.this.authenticate(headers);
 
-				db.startTransaction();
-				msgID = db.putMessage(userID, toUserID, contents);
-				db.endTransaction(true);
+				msgID = Server.this.messageStore.send(userID, toUserID, contents);
 
 			} catch (Exception e) {
-				System.out.println(e.getMessage());
-				e.printStackTrace();
-				try {
-					// if any exception arise, the transaction is rolled back.
-					db.endTransaction(false);
-				} catch (Exception e1) {
-					System.out.println(e1.getMessage());
-					e1.printStackTrace();
-				}
+				int status = Server.this.logFailure(e);
 				// sends a 'fail' HTTP response in return if any issue comes up.
-				exchange.sendResponseHeaders(HttpURLConnection.HTTP_INTERNAL_ERROR, -1);
+				exchange.sendResponseHeaders(status, -1);
 				return;
 			}
 
@@ -353,37 +551,89 @@ public class Server {
 
 	// authenticate
 	// pull msgs, write update in xml, parse gps coords, add to list
+	// if a nearby distance is given, also find the k closest users and add
+	// the ones that came into or went out of range since the last heartbeat
+	// to the update, with profiles only for the ones that came into range
 	private HttpHandler heartbeatHandler = new HttpHandler() {
 
 		@Override
 		public void handle(HttpExchange exchange) throws IOException {
-			Database db = new Database();
+			Storage db = StorageManager.open();
 			Update up;
 
 			try {
 
-				Headers headers = exchange.getRequestHeaders();
-
-				String username = headers.getFirst("username");
-				String password = headers.getFirst("password");
-				String coords = headers.getFirst("coords");
-
+				RequestHeaders headers = new RequestHeaders(exchange.getRequestHeaders());
+
+				String coords = headers.require("coords");
+				// optional: subscribes to nearby updates
+				String nearbyDistString = headers.get("nearby-dist");
+				int k = headers.getInt("k", UserProximityManager.DEFAULT_RESULTS, 1, UserProximityManager.MAX_RESULTS);
+				// optional: "true" to be sent everyone nearby again, say after
+				// the client restarts
+				boolean nearbyReset = headers.getBoolean("nearby-reset");
+
+				// parsed before any messages are pulled, so that bad
+				// coordinates can't cause messages to be marked delivered.
+				double[] parsedCoords = UserProximityManager.parseCoords(coords);
+
+				int userID = Server.this.authenticate(headers);
+				User usr = Server.this.getProfile(userID);
+
+				ArrayList<Integer> nearby = null;
+				if (nearbyDistString != null) {
+					nearby = Server.this.regionMgr.getNearbyUsers(coords, RequestHeaders.parseInt(nearbyDistString),
+							k, userID, new SearchFilter(0, Integer.MAX_VALUE, false));
+				} else {
+					Server.this.nearbyTracker.unsubscribe(userID);
+				}
 
-				if (username == null || password == null || coords == null) {
-					throw new Exception("Not all of the proper header fields were included.");
+				HashSet<Integer> sent = null;
+				ArrayList<User> entered = null;
+				ArrayList<Integer> left = null;
+				if (nearby != null) {
+					Set<Integer> lastSent = nearbyReset ? new HashSet<Integer>()
+							: Server.this.nearbyTracker.getLastSent(userID);
+					ArrayList<Integer> enteredIDs = new ArrayList<Integer>();
+					for (Integer id : nearby) {
+						if (!lastSent.contains(id)) {
+							enteredIDs.add(id);
+						}
+					}
+					db.startReadTransaction();
+					entered = db.getUsersByIDs(enteredIDs);
+					db.endTransaction(true);
+					sent = new HashSet<Integer>(nearby);
+					// anyone deleted since their last heartbeat won't have
+					// been loaded
+					sent.removeAll(enteredIDs);
+					for (User other : entered) {
+						sent.add(other.getUserID());
+					}
+					left = new ArrayList<Integer>();
+					for (Integer id : lastSent) {
+						if (!sent.contains(id)) {
+							left.add(id);
+						}
+					}
 				}
 
-				int userID = Server.this.authenticate(username, password);				
+				// pulled last, since once this commits the messages are
+				// marked delivered and nothing else may fail
+				up = Server.this.messageStore.pull(userID);
+				if (nearby != null) {
+					up.setNearby(entered, left);
+				}
 
-				db.startTransaction();
-				up = db.pullMessages(userID);
-				db.endTransaction(true);
+				// only remembered once the update is sure to go out
+				if (sent != null) {
+					Server.this.nearbyTracker.setLastSent(userID, sent);
+				}
 				
-				Server.this.activeMgr.addUser(userID, coords);
+				Server.this.regionMgr.addUser(userID, parsedCoords[0], parsedCoords[1], usr.getAge(), usr.hasPic());
 
 			} catch (Exception e) {
-				System.out.println(e.getMessage());
-				e.printStackTrace();
+				int status = Server.this.logFailure(e);
 				try {
 					// if any exception arise, the transaction is rolled back.
 					db.endTransaction(false);
@@ -392,7 +642,7 @@ public class Server {
 					e1.printStackTrace();
 				}
 				// sends a 'fail' HTTP response in return if any issue comes up.
-				exchange.sendResponseHeaders(HttpURLConnection.HTTP_INTERNAL_ERROR, -1);
+				exchange.sendResponseHeaders(status, -1);
 				return;
 			}
 
@@ -410,33 +660,38 @@ public class Server {
 
 		@Override
 		public void handle(HttpExchange exchange) throws IOException {
-			Database db = new Database();
+			Storage db = StorageManager.open();
 			int userID;
 
 			try {
 
-				Headers headers = exchange.getRequestHeaders();
+				RequestHeaders headers = new RequestHeaders(exchange.getRequestHeaders());
 
-				String username = headers.getFirst("username");
-				String password = headers.getFirst("password");
-				String aboutMe = headers.getFirst("about-me");
-				String emailAddress = headers.getFirst("email-address");
-				String ageString = headers.getFirst("age");
+				String username = headers.require("username");
+				String password = headers.require("password");
+				String aboutMe = headers.require("about-me");
+				String emailAddress = headers.require("email-address");
+				int age = headers.requireInt("age");
 
-				if (username == null || password == null || aboutMe == null || emailAddress == null
-						|| ageString == null) {
-					throw new Exception("Not all of the proper header fields were included.");
+				// checked here as well as by the storage engine, so that bad
+				// input doesn't cost a password hash first
+				if (!Validators.isValidUsername(username)) {
+					throw ValidationException.BAD_USERNAME;
 				}
-
-				int age = Integer.parseInt(ageString);
+				if (!Validators.isValidEmailAddress(emailAddress)) {
+					throw ValidationException.BAD_EMAIL;
+				}
+				if (!Validators.isValidAge(age)) {
+					throw ValidationException.BAD_AGE;
+				}
+				String hash = Server.this.hasher.hash(password);
 
 				db.startTransaction();
-				userID = db.addUser(username, password, aboutMe, age, emailAddress);
+				userID = db.addUser(username, hash, aboutMe, age, emailAddress);
 				db.endTransaction(true);
 
 			} catch (Exception e) {
-				System.out.println(e.getMessage());
-				e.printStackTrace();
+				int status = Server.this.logFailure(e);
 				try {
 					// if any exception arise, the transaction is rolled back.
 					db.endTransaction(false);
@@ -445,7 +700,7 @@ public class Server {
 					e1.printStackTrace();
 				}
 				// sends a 'fail' HTTP response in return if any issue comes up.
-				exchange.sendResponseHeaders(HttpURLConnection.HTTP_INTERNAL_ERROR, -1);
+				exchange.sendResponseHeaders(status, -1);
 				return;
 			}
 
@@ -464,30 +719,29 @@ public class Server {
 		@Override
 		public void handle(HttpExchange exchange) throws IOException {
 			int userID;
+			String session;
 
 			try {
 
-				Headers headers = exchange.getRequestHeaders();
+				RequestHeaders headers = new RequestHeaders(exchange.getRequestHeaders());
 
-				String username = headers.getFirst("username");
-				String password = headers.getFirst("password");
-
-				if (username == null || password == null) {
-					throw new Exception("Not all of the proper header fields were included.");
-				}
+				String username = headers.require("username");
+				String password = headers.require("password");
 
 				userID = Server.this.authenticate(username, password);
+				session = Server.this.sessionMgr.create(userID);
 
 			} catch (Exception e) {
-				System.out.println(e.getMessage());
-				e.printStackTrace();
+				int status = Server.this.logFailure(e);
 				// sends a 'fail' HTTP response in return if any issue comes up.
-				exchange.sendResponseHeaders(HttpURLConnection.HTTP_INTERNAL_ERROR, -1);
+				exchange.sendResponseHeaders(status, -1);
 				return;
 			}
 
 			// since the request was successful, an HTTP response is sent back
-			// to the client with their userID attached.
+			// to the client with their userID attached, and a session token
+			// to use instead of their password from now on.
+			exchange.getResponseHeaders().set("session", session);
 			exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
 			String idString = "" + userID;
 			exchange.getResponseBody().write(idString.getBytes());
@@ -501,21 +755,13 @@ public class Server {
 
 		@Override
 		public void handle(HttpExchange exchange) throws IOException {
-			Database db = new Database();
+			Storage db = StorageManager.open();
 
 			try {
 
-				Headers headers = exchange.getRequestHeaders();
-
-				String username = headers.getFirst("username");
-				String password = headers.getFirst("password");
-
-				if (username == null || password == null) {
-					throw new Exception("Not all of the proper header fields were included.");
-				}
-
-				int userID = Server.this.authenticate(username, password);				
+				RequestHeaders headers = new RequestHeaders(exchange.getRequestHeaders());
 
+				int userID = Server.this.authenticate(headers);
 
 				File f = new File("pictures/" + userID);
 				Files.deleteIfExists(f.toPath());
@@ -523,10 +769,11 @@ public class Server {
 				db.startTransaction();
 				db.deleteUser(userID);
 				db.endTransaction(true);
+				Server.this.messageStore.removeUser(userID);
+				Server.this.sessionMgr.revokeAll(userID);
 
 			} catch (Exception e) {
-				System.out.println(e.getMessage());
-				e.printStackTrace();
+				int status = Server.this.logFailure(e);
 				try {
 					// if any exception arise, the transaction is rolled back.
 					db.endTransaction(false);
@@ -535,7 +782,7 @@ public class Server {
 					e1.printStackTrace();
 				}
 				// sends a 'fail' HTTP response in return if any issue comes up.
-				exchange.sendResponseHeaders(HttpURLConnection.HTTP_INTERNAL_ERROR, -1);
+				exchange.sendResponseHeaders(status, -1);
 				return;
 			}
 
@@ -552,34 +799,44 @@ public class Server {
 
 		@Override
 		public void handle(HttpExchange exchange) throws IOException {
-			Database db = new Database();
+			Storage db = StorageManager.open();
+			String session = null;
 
 			try {
 
-				Headers headers = exchange.getRequestHeaders();
+				RequestHeaders headers = new RequestHeaders(exchange.getRequestHeaders());
 
-				String username = headers.getFirst("username");
-				String password = headers.getFirst("password");
-				String aboutMe = headers.getFirst("about-me");
-				String ageString = headers.getFirst("age");
-
-				if (username == null || password == null || aboutMe == null
-						|| ageString == null) {
-					throw new Exception("Not all of the proper header fields were included.");
+				// with a session, this is the new password
+				String password = headers.require("password");
+				String aboutMe = headers.require("about-me");
+				int age = headers.requireInt("age");
+				if (!Validators.isValidAge(age)) {
+					throw ValidationException.BAD_AGE;
 				}
 
-				int age = Integer.parseInt(ageString);
+				int userID = Server.this.authenticate(headers);
 
+				db.startReadTransaction();
+				String stored = db.getPassword(userID);
+				db.endTransaction(true);
+				boolean passwordChanged = !Server.this.hasher.verify(password, stored);
+				if (passwordChanged || PasswordHasher.needsRehash(stored)) {
+					stored = Server.this.hasher.hash(password);
+				}
 
-				int userID = Server.this.authenticate(username, password);				
-				
 				db.startTransaction();
-				db.updateUser(userID, password, aboutMe, age);
+				db.updateUser(userID, stored, aboutMe, age);
 				db.endTransaction(true);
 
+				// every other session ends, and this client is given a new
+				// one in their place
+				if (passwordChanged) {
+					Server.this.sessionMgr.revokeAll(userID);
+					session = Server.this.sessionMgr.create(userID);
+				}
+
 			} catch (Exception e) {
-				System.out.println(e.getMessage());
-				e.printStackTrace();
+				int status = Server.this.logFailure(e);
 				try {
 					// if any exception arise, the transaction is rolled back.
 					db.endTransaction(false);
@@ -588,29 +845,214 @@ public class Server {
 					e1.printStackTrace();
 				}
 				// sends a 'fail' HTTP response in return if any issue comes up.
-				exchange.sendResponseHeaders(HttpURLConnection.HTTP_INTERNAL_ERROR, -1);
+				exchange.sendResponseHeaders(status, -1);
 				return;
 			}
 
 			// since the request was successful, an HTTP response is sent back
 			// to the client with their new userID attached.
+			if (session != null) {
+				exchange.getResponseHeaders().set("session", session);
+			}
 			exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
 			exchange.close();
 		}
 	};
 
-	public int authenticate(String username, String password) throws Exception {
+	// only for other nodes
+	// check the secret, then record a heartbeat that another node received
+	// for a position in this node's region
+	private HttpHandler internalPresenceHandler = new HttpHandler() {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+
+				RequestHeaders headers = new RequestHeaders(exchange.getRequestHeaders());
+
+				if (!Server.this.regionMgr.checkSecret(headers.get("node-secret"))) {
+					throw AuthException.NOT_A_NODE;
+				}
+				int userID = headers.requireInt("user-id");
+				double[] parsedCoords = UserProximityManager.parseCoords(headers.require("coords"));
+				int age = headers.requireInt("age");
+				boolean hasPic = Boolean.parseBoolean(headers.require("has-pic"));
+
+				Server.this.activeMgr.addUser(userID, parsedCoords[0], parsedCoords[1], age, hasPic);
+
+			} catch (Exception e) {
+				int status = Server.this.logFailure(e);
+				// sends a 'fail' HTTP response in return if any issue comes up.
+				exchange.sendResponseHeaders(status, -1);
+				return;
+			}
+
+			exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+			exchange.close();
+		}
+	};
+
+	// only for other nodes
+	// check the secret, then search this node's users and write back the
+	// closest ones with their distances
+	private HttpHandler internalSearchHandler = new HttpHandler() {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			String rslts;
+			try {
+
+				RequestHeaders headers = new RequestHeaders(exchange.getRequestHeaders());
+
+				if (!Server.this.regionMgr.checkSecret(headers.get("node-secret"))) {
+					throw AuthException.NOT_A_NODE;
+				}
+				String srcCoords = headers.require("coords");
+				SearchFilter filter = new SearchFilter(headers.requireInt("min-age"), headers.requireInt("max-age"),
+						Boolean.parseBoolean(headers.require("has-pic")));
+				// where the page before ended, if the search carries on from
+				// one
+				double afterDist = -1;
+				if (headers.get("after-dist") != null) {
+					try {
+						afterDist = Double.parseDouble(headers.get("after-dist"));
+					} catch (NumberFormatException e) {
+						throw ValidationException.BAD_NUMBER;
+					}
+				}
+				rslts = Server.this.regionMgr.searchLocal(srcCoords, headers.requireInt("dist"),
+						headers.requireInt("k"), headers.requireInt("exclude-id"), filter, afterDist,
+						headers.getInt("after-id", 0));
+
+			} catch (Exception e) {
+				int status = Server.this.logFailure(e);
+				// sends a 'fail' HTTP response in return if any issue comes up.
+				exchange.sendResponseHeaders(status, -1);
+				return;
+			}
+
+			exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
+			exchange.getResponseBody().write(rslts.getBytes());
+			exchange.getResponseBody().close();
+		}
+	};
+
+	// Plain text, one "name value" pair per line, for watching the database
+	// connection pools under load. Only answered on this machine, or to
+	// another node that sends the secret.
+	private HttpHandler statsHandler = new HttpHandler() {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			if (!exchange.getRemoteAddress().getAddress().isLoopbackAddress()
+					&& !Server.this.regionMgr.checkSecret(exchange.getRequestHeaders().getFirst("node-secret"))) {
+				exchange.sendResponseHeaders(HttpURLConnection.HTTP_FORBIDDEN, -1);
+				return;
+			}
+			byte[] stats = (StorageManager.getStats() + Server.this.writeQueue.getStats() + Server.this.hasher.getStats()
+					+ Server.this.sweeper.getStats() + Server.this.regionMgr.getStats()).getBytes();
+			exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, stats.length);
+			exchange.getResponseBody().write(stats);
+			exchange.getResponseBody().close();
+		}
+	};
 
-		Database db = new Database();
+	// Waits until the change has been committed.
+	private void setHasPic(final int userID, final boolean hasPic) throws Exception {
+		this.writeQueue.submit(new WriteQueue.Write<Void>() {
+			@Override
+			public Void apply(Storage db) throws Exception {
+				db.updateHasPic(userID, hasPic);
+				return null;
+			}
+		}).get();
+	}
 
+	// Moves whatever is left in the Messages table into a fresh mailbox
+	// log, so that switching engines loses nothing. The table is only
+	// emptied once the log has been written.
+	private void importMessages(MailboxManager mailboxMgr) throws Exception {
+		Storage db = StorageManager.open();
 		try {
 			db.startTransaction();
-			int userID = db.authenticate(username, password);
+			mailboxMgr.importMessages(db.getMessagesByStatus("Undelivered"), db.getMessagesByStatus("Delivered"),
+					db.getMessagesByStatus("Failed"));
+			db.deleteAllMessages();
+			db.endTransaction(true);
+		} catch (Exception e) {
+			db.endTransaction(false);
+			throw e;
+		}
+	}
+
+	// Requests prove who they are with the "session" header given out by
+	// /user/login, which needs no database, or else with their "username"
+	// and "password".
+	public int authenticate(RequestHeaders headers) throws Exception {
+		String session = headers.get("session");
+		if (session != null) {
+			return this.sessionMgr.getUserID(session);
+		}
+		return this.authenticate(headers.require("username"), headers.require("password"));
+	}
+
+	// Bad input and failed logins are the client's doing, so they're
+	// answered with a 400, 401 or 403 and logged without a stack trace, and
+	// so is turning work away while busy, with a 503. Anything else is a
+	// 500.
+	private int logFailure(Exception e) {
+		System.out.println(e.getMessage());
+		if (e instanceof ValidationException) {
+			return HttpURLConnection.HTTP_BAD_REQUEST;
+		}
+		if (e instanceof AuthException) {
+			return ((AuthException) e).getStatus();
+		}
+		if (e instanceof BusyException) {
+			return ((BusyException) e).getStatus();
+		}
+		e.printStackTrace();
+		return HttpURLConnection.HTTP_INTERNAL_ERROR;
+	}
+
+	// Cached profiles cost nothing, and others are read from the database.
+	public User getProfile(int userID) throws Exception {
+		User usr = StorageManager.getCachedProfile(userID);
+		if (usr != null) {
+			return usr;
+		}
+
+		Storage db = StorageManager.open();
+		try {
+			db.startReadTransaction();
+			usr = db.getUserByID(userID);
+			db.endTransaction(true);
+			return usr;
+		} catch (Exception e) {
+			db.endTransaction(false);
+			throw e;
+		}
+	}
+
+	public int authenticate(String username, String password) throws Exception {
+		return this.authenticateUser(username, password).getUserID();
+	}
+
+	// The password is checked on the hashing pool, once the database
+	// connection has been given back. A password still stored as it was
+	// before hashing is hashed on that pool without waiting for it once it
+	// has been seen to match, and then saved through the write queue.
+	public User authenticateUser(String username, final String password) throws Exception {
+
+		Storage db = StorageManager.open();
+		final String[] stored = new String[1];
+		final User usr;
+
+		try {
+			db.startReadTransaction();
+			usr = db.getUserWithPassword(username, stored);
 			db.endTransaction(true);
-			return userID;
 		} catch (Exception e) {
-			System.out.println(e.getMessage());
-			e.printStackTrace();
 			try {
 				// if any exception arise, the transaction is rolled back.
 				db.endTransaction(false);
@@ -618,13 +1060,37 @@ public class Server {
 				System.out.println(e1.getMessage());
 				e1.printStackTrace();
 			}
+			if (e instanceof AuthException) {
+				throw e;
+			}
+			System.out.println(e.getMessage());
+			e.printStackTrace();
 			throw new Exception("Error while authenticating");
 		}
+
+		if (!this.hasher.verify(password, stored[0])) {
+			throw AuthException.BAD_LOGIN;
+		}
+		if (PasswordHasher.needsRehash(stored[0])) {
+			this.hasher.hashLater(password, new PasswordHasher.Hashed() {
+				@Override
+				public void done(final String hash) throws Exception {
+					Server.this.writeQueue.submit(new WriteQueue.Write<Void>() {
+						@Override
+						public Void apply(Storage db) throws Exception {
+							db.replacePassword(usr.getUserID(), stored[0], hash);
+							return null;
+						}
+					});
+				}
+			});
+		}
+		return usr;
 	}
 
 	public void resetDatabase() throws Exception {
 
-		Database db = new Database();
+		Storage db = StorageManager.open();
 
 		try {
 			db.startTransaction();
@@ -0,0 +1,89 @@
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Hands out session tokens at login, so that later requests can prove who
+// they are without the database. A session lasts until it has gone unused
+// for a while. Each user also has a generation number, and bumping it
+// revokes every session they had, without having to find them.
+public class SessionManager {
+	private static final long PURGE_INTERVAL = 600000;
+
+	private long ttl;
+	private ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+	private ConcurrentHashMap<Integer, Integer> generations = new ConcurrentHashMap<Integer, Integer>();
+	private SecureRandom random = new SecureRandom();
+	private volatile long lastPurge = System.currentTimeMillis();
+
+	private static class Session {
+		private int userID;
+		private int generation;
+		private volatile long expires;
+	}
+
+	// Sessions expire after ttl milliseconds without being used.
+	public SessionManager(long ttl) {
+		this.ttl = ttl;
+	}
+
+	public String create(int userID) {
+		long now = System.currentTimeMillis();
+		if (now - this.lastPurge > PURGE_INTERVAL) {
+			this.lastPurge = now;
+			this.purge(now);
+		}
+
+		Session s = new Session();
+		s.userID = userID;
+		s.generation = this.generation(userID);
+		s.expires = now + this.ttl;
+
+		byte[] bytes = new byte[24];
+		this.random.nextBytes(bytes);
+		StringBuilder token = new StringBuilder();
+		for (byte b : bytes) {
+			token.append(String.format("%02x", b));
+		}
+		this.sessions.put(token.toString(), s);
+		return token.toString();
+	}
+
+	// Returns the user the session belongs to, and keeps it alive.
+	public int getUserID(String token) throws AuthException {
+		Session s = this.sessions.get(token);
+		long now = System.currentTimeMillis();
+		if (s == null || s.expires < now || s.generation != this.generation(s.userID)) {
+			if (s != null) {
+				this.sessions.remove(token);
+			}
+			throw AuthException.BAD_SESSION;
+		}
+		s.expires = now + this.ttl;
+		return s.userID;
+	}
+
+	// Ends every session the user has, say once their password has changed
+	// or their account is gone.
+	public void revokeAll(int userID) {
+		Integer gen;
+		do {
+			gen = this.generations.get(userID);
+		} while (gen == null ? this.generations.putIfAbsent(userID, 1) != null
+				: !this.generations.replace(userID, gen, gen + 1));
+	}
+
+	private int generation(int userID) {
+		Integer gen = this.generations.get(userID);
+		return gen == null ? 0 : gen;
+	}
+
+	private void purge(long now) {
+		Iterator<Session> it = this.sessions.values().iterator();
+		while (it.hasNext()) {
+			Session s = it.next();
+			if (s.expires < now || s.generation != this.generation(s.userID)) {
+				it.remove();
+			}
+		}
+	}
+}
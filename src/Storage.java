@@ -0,0 +1,85 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// Everything the server keeps about users and messages. Each Storage is
+// used for one transaction at a time, by one thread: start one, make the
+// calls, then end it. Get one from StorageManager.open().
+public interface Storage {
+
+	// Starts a transaction that can write.
+	public void startTransaction() throws Exception;
+
+	// Starts a transaction that only reads.
+	public void startReadTransaction() throws Exception;
+
+	// Commits or rolls back the transaction. Does nothing if none was
+	// started.
+	public void endTransaction(boolean commit) throws Exception;
+
+	// Savepoints let part of a transaction be undone without giving up the
+	// rest of it. They can't be nested.
+	public void savepoint() throws Exception;
+
+	public void releaseSavepoint() throws Exception;
+
+	public void rollbackToSavepoint() throws Exception;
+
+	// Deletes every user and message.
+	public void resetDatabase();
+
+	// users
+
+	// Returns the user's profile, and puts their stored password in
+	// password[0], for the caller to check. A name nobody has throws
+	// AuthException.BAD_LOGIN.
+	public User getUserWithPassword(String username, String[] password) throws Exception;
+
+	public User getUserByName(String username) throws Exception;
+
+	public User getUserByID(int userID) throws Exception;
+
+	// Returns the profiles in the same order as userIDs, leaving out users
+	// that don't exist.
+	public ArrayList<User> getUsersByIDs(List<Integer> userIDs) throws Exception;
+
+	public int addUser(String username, String password, String aboutMe, int age, String emailAddress)
+			throws Exception;
+
+	public void updateUser(int userID, String password, String aboutMe, int age) throws Exception;
+
+	public String getPassword(int userID) throws Exception;
+
+	// Swaps the stored password for newPassword, unless it is no longer
+	// oldPassword.
+	public void replacePassword(int userID, String oldPassword, String newPassword) throws Exception;
+
+	// Also deletes the user's messages, and fails the ones sent to them.
+	public void deleteUser(int userID) throws Exception;
+
+	public void updateHasPic(int userID, boolean hasPic) throws Exception;
+
+	// XP and points
+
+	// Adds amounts written out by ScoreCounters, which has already put them
+	// on the leaderboard. A user deleted since is skipped.
+	public void addScores(int userID, long expToAdd, long pointsToAdd) throws Exception;
+
+	// messages
+
+	public int putMessage(int fromUserID, int toUserID, String contents) throws Exception;
+
+	public ArrayList<Message> getMessagesByStatus(String status) throws Exception;
+
+	public void deleteAllMessages() throws Exception;
+
+	// Hands over the user's new messages, marking them delivered, and the
+	// results of the messages they sent, marking those acknowledged.
+	public Update pullMessages(int userID) throws Exception;
+
+	// Fails up to limit messages sent before the given time that are still
+	// undelivered, and returns how many.
+	public int expireMessages(long sentBefore, int limit) throws Exception;
+
+	// Deletes up to limit acknowledged messages, and returns how many.
+	public int deleteAcknowledgedMessages(int limit) throws Exception;
+}
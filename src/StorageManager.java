@@ -0,0 +1,50 @@
+// Picks the storage engine at startup, and hands out a Storage for each
+// transaction. Also keeps what sits in front of every engine: the XP and
+// points not yet written, and the leaderboard.
+public class StorageManager {
+	private static boolean inMemory = false;
+
+	// Every user's points in order, loaded at startup and then kept up to
+	// date as they change. In a partitioned setup each node only sees the
+	// changes made through it.
+	private static Leaderboard leaderboard = new Leaderboard();
+
+	// XP and points not yet written out, which every profile read adds on.
+	private static ScoreCounters scores = new ScoreCounters(leaderboard);
+
+	// The engine is "sqlite", or "memory", which starts out empty and
+	// forgets everything on restart.
+	public static void initialize(String engine) {
+		if (engine.equals("sqlite")) {
+			Database.initialize();
+		} else if (engine.equals("memory")) {
+			inMemory = true;
+		} else {
+			throw new IllegalArgumentException("Unknown storage engine: " + engine);
+		}
+	}
+
+	public static Storage open() {
+		return inMemory ? new MemoryStorage() : new Database();
+	}
+
+	// Returns the user's profile if the engine has it to hand, or null,
+	// without needing a transaction.
+	public static User getCachedProfile(int userID) {
+		return inMemory ? null : Database.getCachedProfile(userID);
+	}
+
+	// XP and points only change through here, so that they don't each need
+	// a transaction.
+	public static ScoreCounters getScores() {
+		return scores;
+	}
+
+	public static Leaderboard getLeaderboard() {
+		return leaderboard;
+	}
+
+	public static String getStats() {
+		return (inMemory ? "" : Database.getPoolStats() + Database.getProfileCacheStats()) + scores.getStats();
+	}
+}
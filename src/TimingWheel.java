@@ -0,0 +1,60 @@
+import java.util.Arrays;
+
+// A hashed timing wheel of userIDs. Each slot covers one tick, and a user
+// scheduled for a given time lands in the slot for that tick. Advancing the
+// wheel hands back only the users whose slots have come due, so the cost of
+// expiry depends on how many users are due rather than on how many are
+// active. Nothing may be scheduled further ahead than the span of the wheel.
+public class TimingWheel {
+	private long tickLength;
+	private int[][] slots;
+	private int[] sizes;
+	private Object[] locks;
+
+	// The next tick that advance() will hand back.
+	private volatile long nextTick;
+
+	public TimingWheel(long tickLength, long span, long now) {
+		int count = (int) (span / tickLength) + 2;
+		this.tickLength = tickLength;
+		this.slots = new int[count][];
+		this.sizes = new int[count];
+		this.locks = new Object[count];
+		for (int i = 0; i < count; i++) {
+			this.slots[i] = new int[16];
+			this.locks[i] = new Object();
+		}
+		this.nextTick = now / tickLength;
+	}
+
+	// Times that have already gone by are handed back on the next advance.
+	public void schedule(int userID, long when) {
+		long tick = Math.max(when / this.tickLength, this.nextTick);
+		int slot = (int) (tick % this.slots.length);
+		synchronized (this.locks[slot]) {
+			if (this.sizes[slot] == this.slots[slot].length) {
+				this.slots[slot] = Arrays.copyOf(this.slots[slot], this.sizes[slot] * 2);
+			}
+			this.slots[slot][this.sizes[slot]++] = userID;
+		}
+	}
+
+	// Empties every slot up to and including the one for now, and returns
+	// the userIDs that were in them.
+	public int[] advance(long now) {
+		int[] due = new int[0];
+		long last = now / this.tickLength;
+		for (long tick = this.nextTick; tick <= last; tick++) {
+			int slot = (int) (tick % this.slots.length);
+			synchronized (this.locks[slot]) {
+				int size = this.sizes[slot];
+				int start = due.length;
+				due = Arrays.copyOf(due, start + size);
+				System.arraycopy(this.slots[slot], 0, due, start, size);
+				this.sizes[slot] = 0;
+			}
+			this.nextTick = tick + 1;
+		}
+		return due;
+	}
+}
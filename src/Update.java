@@ -4,6 +4,10 @@ public class Update {
 	private ArrayList<Message> messagesReceived;
 	private ArrayList<Integer> messagesDelivered;
 	private ArrayList<Integer> messagesFailed;
+	// Only sent to users who asked for nearby updates: the users who came
+	// into range since the last heartbeat, and the IDs of those who left.
+	private ArrayList<User> nearbyEntered;
+	private ArrayList<Integer> nearbyLeft;
 
 	public Update(ArrayList<Message> messagesReceived, ArrayList<Integer> messagesDelivered, ArrayList<Integer> messagesFailed) {
 		this.messagesReceived = messagesReceived;
@@ -11,4 +15,21 @@ public class Update {
 		this.messagesFailed = messagesFailed;
 	}
 
+	public ArrayList<Message> getMessagesReceived() {
+		return this.messagesReceived;
+	}
+
+	public ArrayList<Integer> getMessagesDelivered() {
+		return this.messagesDelivered;
+	}
+
+	public ArrayList<Integer> getMessagesFailed() {
+		return this.messagesFailed;
+	}
+
+	public void setNearby(ArrayList<User> nearbyEntered, ArrayList<Integer> nearbyLeft) {
+		this.nearbyEntered = nearbyEntered;
+		this.nearbyLeft = nearbyLeft;
+	}
+
 }
@@ -19,4 +19,39 @@ public class User {
 		this.hasPic = hasPic;
 	}
 
+	public int getUserID() {
+		return this.userID;
+	}
+
+	public String getUsername() {
+		return this.username;
+	}
+
+	public int getPoints() {
+		return this.points;
+	}
+
+	public int getExp() {
+		return this.exp;
+	}
+
+	// Returns a copy of this profile with the given XP and points added.
+	public User addScores(long exp, long points) {
+		return new User(this.userID, this.username, this.aboutMe, this.age, saturate(this.points + points),
+				saturate(this.exp + exp), this.hasPic);
+	}
+
+	// Scores stop at the ends of the int range rather than wrap around.
+	public static int saturate(long score) {
+		return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, score));
+	}
+
+	public int getAge() {
+		return this.age;
+	}
+
+	public boolean hasPic() {
+		return this.hasPic;
+	}
+
 }
@@ -1,61 +1,121 @@
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Map.Entry;
-
 public class UserProximityManager implements Runnable {
+	private static final int REBUILD_INTERVAL = 15000;
+	public static final int DEFAULT_RESULTS = 25;
+	public static final int MAX_RESULTS = 100;
+	private static final double EARTH_RADIUS = 6371000;
+
+	private ActiveUserManager activeMgr;
 
-	private LinkedList<HashMap<Integer, String>> mapQueue;
+	// The current tree. A new one is built in the background and then swapped
+	// in, so searches never see a half built tree.
+	private volatile KDTree tree = new KDTree();
+
+	// Only used by the "grid" engine, which ActiveUserManager updates on every
+	// heartbeat instead of rebuilding a tree.
+	private GeoGrid grid;
 
 	public UserProximityManager(ActiveUserManager am) {
-		this.mapQueue = am.getMapQueue();
+		this(am, "tree");
 	}
 
-	// TODO this does nothing right now. In the future, when a 2d tree is
-	// implemented, this will wake up every 15 or so seconds and redraw a
-	// balanced 2d tree.
+	// engine is either "tree" or "grid".
+	public UserProximityManager(ActiveUserManager am, String engine) {
+		this.activeMgr = am;
+		if (engine.equals("grid")) {
+			this.grid = new GeoGrid();
+			am.setGrid(this.grid);
+		} else if (!engine.equals("tree")) {
+			throw new IllegalArgumentException("Unknown proximity engine: " + engine);
+		}
+	}
+
+	// Wakes up every 15 seconds and redraws a balanced 2d tree from the users
+	// that are currently active. The grid engine needs no rebuilding.
 	@Override
 	public void run() {
-		// while (true) {
-		// try {
-		// Thread.sleep(15000);
-		// } catch (InterruptedException e) {
-		// e.printStackTrace();
-		// }
-		// //TODO redraw tree here
-		// }
-	}
-
-	// This is the current crappy implementation. It is a linear search. This
-	// will hopefully soon be replaced by a tree search.
-	public ArrayList<Integer> getNearbyUsers(String srcCoords, int dist) {
-		int rsltsFound = 0;
-		ArrayList<Integer> rslts = new ArrayList<Integer>();
-
-		Iterator<HashMap<Integer, String>> iter = this.mapQueue.iterator();
-
-		while (iter.hasNext() && rsltsFound < 25) {
-			HashMap<Integer, String> map = iter.next();
-
-			for (Entry<Integer, String> e : map.entrySet()) {
-				if (this.computeDistance(e.getValue(), srcCoords) <= dist) {
-					rslts.add(e.getKey());
-					rsltsFound++;
-				}
-				if (rsltsFound == 25) {
-					break;
-				}
+		while (this.grid == null) {
+			this.rebuildTree();
+			try {
+				Thread.sleep(REBUILD_INTERVAL);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
 			}
 		}
-		return rslts;
 	}
 
-	// TODO implement this. Also, consider passing
-	// the values in as parsed GPS coordinates.
-	// Consider using the haversine formula
-	private int computeDistance(String destCoords, String srcCoords) {
-		return 0;
+	public void rebuildTree() {
+		this.tree = this.activeMgr.snapshot().buildTree();
+	}
+
+	// Offers the users near the point to near, using whichever engine is in
+	// use.
+	public void findNearest(NearestUsers near) {
+		if (this.grid != null) {
+			this.grid.nearest(near);
+		} else {
+			this.tree.nearest(near);
+		}
+	}
+
+	// Returns the users within dist meters of the point as they are now, and
+	// as they'll stay, for the later pages of a search from there. The tree
+	// engine's current tree never changes, so it serves as is, while the
+	// grid engine copies the users near the point.
+	public KDTree pin(double lat, double lon, int dist) {
+		if (this.grid != null) {
+			return this.grid.copyNear(lat, lon, dist);
+		}
+		return this.tree;
+	}
+
+	// Coordinates come in as "latitude,longitude" in decimal degrees.
+	public static double[] parseCoords(String coords) throws ValidationException {
+		int comma = coords.indexOf(',');
+		if (comma < 0) {
+			throw ValidationException.BAD_COORDS;
+		}
+		double lat;
+		double lon;
+		try {
+			lat = Double.parseDouble(coords.substring(0, comma).trim());
+			lon = Double.parseDouble(coords.substring(comma + 1).trim());
+		} catch (NumberFormatException e) {
+			throw ValidationException.BAD_COORDS;
+		}
+		if (!(lat >= -90 && lat <= 90 && lon >= -180 && lon <= 180)) {
+			throw ValidationException.BAD_COORDS;
+		}
+		return new double[] { lat, lon };
+	}
+
+	// Great circle distance in meters, using the haversine formula.
+	public static double computeDistance(double lat1, double lon1, double lat2, double lon2) {
+		double dLat = Math.toRadians(lat2 - lat1);
+		double dLon = Math.toRadians(lon2 - lon1);
+		double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) + Math.cos(Math.toRadians(lat1))
+				* Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+		return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+	}
+
+	// The number of degrees of latitude covered by dist meters.
+	public static double latitudeSpan(double dist) {
+		return Math.toDegrees(dist / EARTH_RADIUS);
+	}
+
+	// The number of degrees of longitude that a circle of dist meters around
+	// the given latitude can reach. Near the poles, or across the date line,
+	// this just gives up and covers every longitude.
+	public static double longitudeSpan(double lat, double lon, double dist) {
+		double s = Math.sin(dist / EARTH_RADIUS);
+		double c = Math.cos(Math.toRadians(lat));
+		if (s >= c || Math.abs(lat) + latitudeSpan(dist) >= 90) {
+			return 360;
+		}
+		double span = Math.toDegrees(Math.asin(s / c));
+		if (lon - span < -180 || lon + span > 180) {
+			return 360;
+		}
+		return span;
 	}
 
 }
@@ -0,0 +1,26 @@
+// Bad input from a client, such as a missing header or a number that isn't
+// one. That's ordinary, so these carry no stack trace, and the common ones
+// are made once and shared.
+public class ValidationException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	public static final ValidationException MISSING_FIELDS = new ValidationException(
+			"Not all of the proper header fields were included.");
+	public static final ValidationException BAD_NUMBER = new ValidationException(
+			"A header that should be a number isn't one.");
+	public static final ValidationException BAD_COORDS = new ValidationException(
+			"The coordinates supplied are invalid.");
+	public static final ValidationException BAD_USERNAME = new ValidationException(
+			"This username does not have a valid format.");
+	public static final ValidationException BAD_EMAIL = new ValidationException(
+			"This email address does not have a valid format.");
+	public static final ValidationException BAD_AGE = new ValidationException("The age supplied is invalid.");
+	public static final ValidationException BAD_RESULT_COUNT = new ValidationException(
+			"The number of results must be between 1 and " + RegionManager.MAX_NEAREST + ".");
+	public static final ValidationException INVALID_CURSOR = new ValidationException(
+			"The search cursor is invalid or has expired.");
+
+	public ValidationException(String message) {
+		super(message, null, false, false);
+	}
+}
@@ -0,0 +1,78 @@
+import java.util.regex.Pattern;
+
+// Checks on what users give us about themselves, shared by the request
+// handlers and the storage engines.
+public class Validators {
+	private static final Pattern USERNAME = Pattern.compile("^[a-z][a-z0-9_-]{4,15}$");
+
+	// the longest address SMTP can carry, and the longest part before the @
+	private static final int MAX_EMAIL = 254;
+	private static final int MAX_LOCAL_PART = 64;
+	private static final int MAX_LABEL = 63;
+	private static final String LOCAL_SYMBOLS = "!#$%&'*+/=?^_`{|}~-";
+
+	public static boolean isValidUsername(String username) {
+		return username != null && USERNAME.matcher(username).matches();
+	}
+
+	public static boolean isValidAge(int age) {
+		return age > 5 && age < 115;
+	}
+
+	// A plain "local@domain" address, checked in one pass, so that the cost
+	// is bounded by the length limit whatever is sent. Quoted local parts,
+	// comments and display names, which the old RFC 822 pattern allowed,
+	// aren't accepted.
+	public static boolean isValidEmailAddress(String emailAddress) {
+		if (emailAddress == null || emailAddress.length() > MAX_EMAIL) {
+			return false;
+		}
+		int at = emailAddress.indexOf('@');
+		if (at < 1 || at > MAX_LOCAL_PART || at == emailAddress.length() - 1) {
+			return false;
+		}
+
+		// dot separated atoms before the @
+		char prev = '.';
+		for (int i = 0; i < at; i++) {
+			char c = emailAddress.charAt(i);
+			if (c == '.') {
+				if (prev == '.') {
+					return false;
+				}
+			} else if (!isAsciiLetterOrDigit(c) && LOCAL_SYMBOLS.indexOf(c) < 0) {
+				return false;
+			}
+			prev = c;
+		}
+		if (prev == '.') {
+			return false;
+		}
+
+		// and dot separated labels after it, of letters, digits and hyphens
+		// that neither start nor end with a hyphen
+		int labelLength = 0;
+		prev = '.';
+		for (int i = at + 1; i < emailAddress.length(); i++) {
+			char c = emailAddress.charAt(i);
+			if (c == '.') {
+				if (labelLength == 0 || prev == '-') {
+					return false;
+				}
+				labelLength = 0;
+			} else if (isAsciiLetterOrDigit(c) || (c == '-' && labelLength > 0)) {
+				if (++labelLength > MAX_LABEL) {
+					return false;
+				}
+			} else {
+				return false;
+			}
+			prev = c;
+		}
+		return labelLength > 0 && prev != '-';
+	}
+
+	private static boolean isAsciiLetterOrDigit(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+	}
+}
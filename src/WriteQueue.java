@@ -0,0 +1,135 @@
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Funnels small writes from the handler threads through one writer thread,
+// which commits them in batches. A commit costs an fsync however much it
+// holds, so under load many writes share one instead of each paying for its
+// own. Callers get a future that completes once their write is committed.
+public class WriteQueue implements Runnable {
+	// A batch is committed once it holds this many writes, or once its first
+	// write has waited this long, whichever comes first.
+	private static final int MAX_BATCH = 256;
+	private static final long MAX_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+	// Handlers block rather than queue up without limit if the database
+	// falls behind.
+	private static final int CAPACITY = 10000;
+
+	private LinkedBlockingQueue<Pending<?>> queue = new LinkedBlockingQueue<Pending<?>>(CAPACITY);
+
+	private AtomicLong batches = new AtomicLong();
+	private AtomicLong writes = new AtomicLong();
+	private AtomicLong failures = new AtomicLong();
+
+	// One write, run on the writer thread inside the current batch's
+	// transaction.
+	public static abstract class Write<T> {
+		public abstract T apply(Storage db) throws Exception;
+	}
+
+	private static class Pending<T> {
+		private Write<T> write;
+		private CompletableFuture<T> future = new CompletableFuture<T>();
+		private T result;
+
+		private Pending(Write<T> write) {
+			this.write = write;
+		}
+
+		private void apply(Storage db) throws Exception {
+			this.result = this.write.apply(db);
+		}
+
+		private void complete() {
+			this.future.complete(this.result);
+		}
+	}
+
+	public <T> Future<T> submit(Write<T> write) throws Exception {
+		Pending<T> pending = new Pending<T>(write);
+		this.queue.put(pending);
+		return pending.future;
+	}
+
+	@Override
+	public void run() {
+		ArrayList<Pending<?>> batch = new ArrayList<Pending<?>>(MAX_BATCH);
+		while (true) {
+			try {
+				batch.add(this.queue.take());
+				long deadline = System.nanoTime() + MAX_DELAY_NANOS;
+				while (batch.size() < MAX_BATCH) {
+					// whatever is already waiting is taken without a wait
+					if (this.queue.drainTo(batch, MAX_BATCH - batch.size()) > 0) {
+						continue;
+					}
+					long remaining = deadline - System.nanoTime();
+					Pending<?> next = remaining > 0 ? this.queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			if (!batch.isEmpty()) {
+				this.commit(batch);
+				batch.clear();
+			}
+		}
+	}
+
+	// Each write runs inside its own savepoint, so one that fails is undone
+	// on its own and only its caller hears about it. The rest are committed
+	// together, and only then told that they succeeded.
+	private void commit(ArrayList<Pending<?>> batch) {
+		Storage db = StorageManager.open();
+		ArrayList<Pending<?>> applied = new ArrayList<Pending<?>>(batch.size());
+		try {
+			db.startTransaction();
+			for (Pending<?> pending : batch) {
+				db.savepoint();
+				try {
+					pending.apply(db);
+					db.releaseSavepoint();
+					applied.add(pending);
+				} catch (Exception e) {
+					db.rollbackToSavepoint();
+					this.failures.incrementAndGet();
+					pending.future.completeExceptionally(e);
+				}
+			}
+			db.endTransaction(true);
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			e.printStackTrace();
+			try {
+				db.endTransaction(false);
+			} catch (Exception e1) {
+				System.out.println(e1.getMessage());
+			}
+			for (Pending<?> pending : batch) {
+				pending.future.completeExceptionally(e);
+			}
+			this.failures.addAndGet(applied.size());
+			return;
+		}
+
+		this.batches.incrementAndGet();
+		this.writes.addAndGet(applied.size());
+		for (Pending<?> pending : applied) {
+			pending.complete();
+		}
+	}
+
+	public String getStats() {
+		long batchCount = this.batches.get();
+		return "writes.queued " + this.queue.size() + "\nwrites.committed " + this.writes.get() + "\nwrites.failed "
+				+ this.failures.get() + "\nwrites.batches " + batchCount + "\nwrites.avgBatch "
+				+ (batchCount == 0 ? 0 : this.writes.get() / batchCount) + "\n";
+	}
+}
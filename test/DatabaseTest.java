@@ -0,0 +1,28 @@
+import java.io.File;
+
+import org.junit.BeforeClass;
+
+// Runs the storage contract against the SQLite engine, in a database file
+// of its own rather than the one in database/.
+public class DatabaseTest extends StorageContractTest {
+
+	@BeforeClass
+	public static void createDatabase() throws Exception {
+		File dir = File.createTempFile("storage", "");
+		dir.delete();
+		dir.mkdir();
+		dir.deleteOnExit();
+		File file = new File(dir, "test.sqlite");
+		// WAL mode keeps two more files next to the database
+		for (String suffix : new String[] { "", "-wal", "-shm" }) {
+			new File(file.getPath() + suffix).deleteOnExit();
+		}
+		System.setProperty("database.file", file.getPath());
+		Database.initialize();
+	}
+
+	@Override
+	protected Storage open() {
+		return new Database();
+	}
+}
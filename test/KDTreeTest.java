@@ -0,0 +1,211 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+// Checks searches of the 2d tree against a linear scan over the same users.
+public class KDTreeTest {
+	private static final int USERS = 300000;
+	private static final int QUERIES = 100;
+
+	private static int[] ids = new int[USERS];
+	private static double[] lats = new double[USERS];
+	private static double[] lons = new double[USERS];
+	private static int[] ages = new int[USERS];
+	private static boolean[] pics = new boolean[USERS];
+	private static KDTree tree;
+
+	// Most users are spread over a couple of hundred kilometers, and the
+	// rest are crowded into a few hot spots, some of them on the exact same
+	// coordinates.
+	@BeforeClass
+	public static void buildUsers() {
+		Random rand = new Random(1);
+		for (int i = 0; i < USERS; i++) {
+			ids[i] = i + 1;
+			if (i % 10 < 7) {
+				lats[i] = 39 + 2 * rand.nextDouble();
+				lons[i] = -75 + 2 * rand.nextDouble();
+			} else if (i % 10 < 9) {
+				lats[i] = 40 + rand.nextGaussian() * 0.01;
+				lons[i] = -74 + rand.nextGaussian() * 0.01;
+			} else {
+				lats[i] = 40.5;
+				lons[i] = -74.5;
+			}
+			ages[i] = 13 + rand.nextInt(60);
+			pics[i] = rand.nextBoolean();
+		}
+		tree = new KDTree(ids, lats, lons, ages, pics, USERS);
+	}
+
+	@Test
+	public void matchesLinearScan() {
+		Random rand = new Random(2);
+		SearchFilter anyone = new SearchFilter(0, Integer.MAX_VALUE, false);
+		for (int q = 0; q < QUERIES; q++) {
+			double lat = 39 + 2 * rand.nextDouble();
+			double lon = -75 + 2 * rand.nextDouble();
+			int dist = 100 + rand.nextInt(50000);
+			int k = 1 + rand.nextInt(UserProximityManager.MAX_RESULTS);
+			this.check(lat, lon, dist, k, ids[rand.nextInt(USERS)], anyone);
+		}
+	}
+
+	@Test
+	public void matchesLinearScanInHotSpots() {
+		Random rand = new Random(3);
+		SearchFilter anyone = new SearchFilter(0, Integer.MAX_VALUE, false);
+		for (int q = 0; q < QUERIES; q++) {
+			double lat = 40 + rand.nextGaussian() * 0.01;
+			double lon = -74 + rand.nextGaussian() * 0.01;
+			this.check(lat, lon, 2000, 1 + rand.nextInt(UserProximityManager.MAX_RESULTS), -1, anyone);
+		}
+		// everyone at the same spot is the same distance away, so the
+		// smallest IDs win
+		this.check(40.5, -74.5, 10, 50, -1, anyone);
+	}
+
+	@Test
+	public void matchesLinearScanWithFilter() {
+		Random rand = new Random(4);
+		for (int q = 0; q < QUERIES; q++) {
+			int minAge = 13 + rand.nextInt(40);
+			SearchFilter filter = new SearchFilter(minAge, minAge + rand.nextInt(20), rand.nextBoolean());
+			double lat = 39 + 2 * rand.nextDouble();
+			double lon = -75 + 2 * rand.nextDouble();
+			this.check(lat, lon, 1000 + rand.nextInt(30000), 1 + rand.nextInt(UserProximityManager.MAX_RESULTS),
+					-1, filter);
+		}
+	}
+
+	// Pages of a search, each carrying on after the last user of the one
+	// before, add up to one big search, even across hot spots full of ties.
+	@Test
+	public void pagesMatchLinearScan() {
+		SearchFilter anyone = new SearchFilter(0, Integer.MAX_VALUE, false);
+		double[][] points = { { 40.5, -74.5 }, { 40, -74 }, { 39.7, -74.2 } };
+		for (double[] p : points) {
+			assertEquals("pages at " + p[0] + "," + p[1], linearScan(p[0], p[1], 2000, 20 * 17, -1, anyone),
+					pages(p[0], p[1], 2000, 17, 20, anyone, tree, null));
+		}
+	}
+
+	// The same through the grid, with the first page from the grid itself
+	// and the rest from a copy of the users around the point.
+	@Test
+	public void gridPagesMatchLinearScan() {
+		GeoGrid grid = new GeoGrid();
+		for (int i = 0; i < USERS; i++) {
+			grid.update(ids[i], lats[i], lons[i], ages[i], pics[i]);
+		}
+		SearchFilter anyone = new SearchFilter(0, Integer.MAX_VALUE, false);
+		double[][] points = { { 40.5, -74.5 }, { 40, -74 }, { 39.7, -74.2 } };
+		for (double[] p : points) {
+			assertEquals("grid pages at " + p[0] + "," + p[1], linearScan(p[0], p[1], 2000, 20 * 17, -1, anyone),
+					pages(p[0], p[1], 2000, 17, 20, anyone, grid.copyNear(p[0], p[1], 2000), grid));
+		}
+	}
+
+	// A page far into a search only looks at the users around the edge of
+	// what the pages before it covered, not at everyone they found.
+	@Test
+	public void laterPagesSkipWhatEarlierOnesCovered() {
+		final int[] looked = new int[1];
+		SearchFilter counting = new SearchFilter(0, Integer.MAX_VALUE, false) {
+			@Override
+			public boolean accepts(int age, boolean hasPic) {
+				looked[0]++;
+				return true;
+			}
+		};
+		double afterDist = -1;
+		int afterID = 0;
+		for (int page = 1; page <= 80; page++) {
+			looked[0] = 0;
+			NearestUsers near = new NearestUsers(39.7, -74.2, 50000, 25, -1, counting);
+			near.startAfter(afterDist, afterID);
+			tree.nearest(near);
+			assertEquals(25, near.sort());
+			afterDist = near.getDistance(24);
+			afterID = near.getID(24);
+		}
+		assertTrue("the 80th page looked at " + looked[0] + " users", looked[0] < 79 * 25 / 2);
+	}
+
+	// Runs up to count pages of a search, the first through grid if it
+	// isn't null and the rest through pinned, and returns everyone found.
+	private static ArrayList<Integer> pages(double lat, double lon, int dist, int k, int count, SearchFilter filter,
+			KDTree pinned, GeoGrid grid) {
+		ArrayList<Integer> paged = new ArrayList<Integer>();
+		double afterDist = -1;
+		int afterID = 0;
+		for (int page = 0; page < count; page++) {
+			NearestUsers near = new NearestUsers(lat, lon, dist, k, -1, filter);
+			near.startAfter(afterDist, afterID);
+			if (page == 0 && grid != null) {
+				grid.nearest(near);
+			} else {
+				pinned.nearest(near);
+			}
+			int n = near.sort();
+			for (int i = 0; i < n; i++) {
+				paged.add(near.getID(i));
+			}
+			if (n == 0) {
+				break;
+			}
+			afterDist = near.getDistance(n - 1);
+			afterID = near.getID(n - 1);
+		}
+		return paged;
+	}
+
+	@Test
+	public void emptyTreeFindsNobody() {
+		NearestUsers near = new NearestUsers(40, -74, 1000, 10, -1, new SearchFilter(0, Integer.MAX_VALUE, false));
+		new KDTree().nearest(near);
+		assertEquals(0, near.sort());
+	}
+
+	private void check(double lat, double lon, int dist, int k, int excludeID, SearchFilter filter) {
+		NearestUsers near = new NearestUsers(lat, lon, dist, k, excludeID, filter);
+		tree.nearest(near);
+		assertEquals("search at " + lat + "," + lon + " within " + dist + "m, k=" + k,
+				linearScan(lat, lon, dist, k, excludeID, filter), near.toSortedList());
+	}
+
+	// Every user in range, closest first and on a tie smallest ID first,
+	// cut down to k.
+	private static ArrayList<Integer> linearScan(double lat, double lon, int dist, int k, int excludeID,
+			SearchFilter filter) {
+		ArrayList<double[]> found = new ArrayList<double[]>();
+		for (int i = 0; i < USERS; i++) {
+			if (ids[i] == excludeID || !filter.accepts(ages[i], pics[i])) {
+				continue;
+			}
+			double d = UserProximityManager.computeDistance(lat, lon, lats[i], lons[i]);
+			if (d <= dist) {
+				found.add(new double[] { d, ids[i] });
+			}
+		}
+		double[][] sorted = found.toArray(new double[found.size()][]);
+		Arrays.sort(sorted, new Comparator<double[]>() {
+			@Override
+			public int compare(double[] a, double[] b) {
+				return a[0] != b[0] ? Double.compare(a[0], b[0]) : Double.compare(a[1], b[1]);
+			}
+		});
+		ArrayList<Integer> rslts = new ArrayList<Integer>();
+		for (int i = 0; i < Math.min(k, sorted.length); i++) {
+			rslts.add((int) sorted[i][1]);
+		}
+		return rslts;
+	}
+}
@@ -0,0 +1,98 @@
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+// Checks the skip list against sorting every user's points from scratch,
+// through a long run of random sets, adds, removals and clears.
+public class LeaderboardTest {
+	private static final int USERS = 2000;
+	private static final int STEPS = 200000;
+	private static final int CHECK_EVERY = 1000;
+
+	private Leaderboard board = new Leaderboard();
+	private HashMap<Integer, Long> points = new HashMap<Integer, Long>();
+
+	@Test
+	public void matchesSorting() {
+		Random rand = new Random(1);
+		for (int step = 0; step < STEPS; step++) {
+			int userID = rand.nextInt(USERS);
+			int op = rand.nextInt(100);
+			if (op < 40) {
+				long p = rand.nextInt(500);
+				this.board.set(userID, p);
+				this.points.put(userID, p);
+			} else if (op < 80) {
+				// small amounts, so plenty of users tie
+				long p = rand.nextInt(21) - 10;
+				this.board.add(userID, p);
+				if (this.points.containsKey(userID)) {
+					this.points.put(userID, this.points.get(userID) + p);
+				}
+			} else if (op < 99) {
+				this.board.remove(userID);
+				this.points.remove(userID);
+			} else if (rand.nextInt(100) == 0) {
+				this.board.clear();
+				this.points.clear();
+			}
+			if (step % CHECK_EVERY == 0) {
+				this.check("after step " + step, rand);
+			}
+		}
+	}
+
+	@Test
+	public void usersOffTheBoardHaveNoRank() {
+		this.board.set(1, 10);
+		this.board.add(2, 5);
+		assertEquals(0, this.board.rank(2));
+		assertEquals(1, this.board.size());
+		this.board.remove(1);
+		assertEquals(0, this.board.rank(1));
+		assertEquals(0, this.board.top(10).size());
+	}
+
+	private void check(String when, Random rand) {
+		ArrayList<Integer> sorted = this.sorted(new ArrayList<Integer>(this.points.keySet()));
+		assertEquals(when, sorted.size(), this.board.size());
+		assertEquals(when, sorted, this.board.top(sorted.size()));
+		assertEquals(when, sorted.subList(0, Math.min(10, sorted.size())), this.board.top(10));
+		for (int i = 0; i < sorted.size(); i++) {
+			assertEquals(when + ", rank of " + sorted.get(i), i + 1, this.board.rank(sorted.get(i)));
+		}
+
+		// a random handful, some of them not on the board at all
+		ArrayList<Integer> some = new ArrayList<Integer>();
+		for (int i = 0; i < 50; i++) {
+			some.add(rand.nextInt(USERS));
+		}
+		ArrayList<Integer> onBoard = new ArrayList<Integer>();
+		for (Integer userID : some) {
+			if (this.points.containsKey(userID) && !onBoard.contains(userID)) {
+				onBoard.add(userID);
+			}
+		}
+		assertEquals(when, this.sorted(onBoard), this.board.rankAmong(some));
+	}
+
+	// Most points first, and on a tie smallest ID first.
+	private ArrayList<Integer> sorted(List<Integer> userIDs) {
+		ArrayList<Integer> sorted = new ArrayList<Integer>(userIDs);
+		Collections.sort(sorted, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int byPoints = Long.compare(points.get(b), points.get(a));
+				return byPoints != 0 ? byPoints : Integer.compare(a, b);
+			}
+		});
+		return sorted;
+	}
+}
@@ -0,0 +1,8 @@
+// Runs the storage contract against the in-memory engine.
+public class MemoryStorageTest extends StorageContractTest {
+
+	@Override
+	protected Storage open() {
+		return new MemoryStorage();
+	}
+}
@@ -0,0 +1,538 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+// What every storage engine has to do the same way. Each engine has a
+// subclass that says how to open it; the server must not be able to tell
+// them apart. The engines are shared by the whole run, so every test makes
+// its own users and only looks at those.
+public abstract class StorageContractTest {
+	private static int lastName;
+
+	protected abstract Storage open();
+
+	// users
+
+	@Test
+	public void addedUsersCanBeReadBack() throws Exception {
+		String name = newName();
+		int userID = this.addUser(name);
+
+		Storage db = this.open();
+		db.startReadTransaction();
+		try {
+			User byID = db.getUserByID(userID);
+			assertEquals(userID, byID.getUserID());
+			assertEquals(name, byID.getUsername());
+			assertEquals(30, byID.getAge());
+			assertEquals(0, byID.getPoints());
+			assertEquals(0, byID.getExp());
+			assertFalse(byID.hasPic());
+			assertEquals(userID, db.getUserByName(name).getUserID());
+		} finally {
+			db.endTransaction(true);
+		}
+	}
+
+	@Test
+	public void usersByIDsKeepTheirOrderAndSkipTheMissing() throws Exception {
+		int a = this.addUser(newName());
+		int b = this.addUser(newName());
+		int c = this.addUser(newName());
+		this.deleteUser(b);
+
+		Storage db = this.open();
+		db.startReadTransaction();
+		try {
+			ArrayList<User> found = db.getUsersByIDs(Arrays.asList(c, b, a, Integer.MAX_VALUE));
+			assertEquals(2, found.size());
+			assertEquals(c, found.get(0).getUserID());
+			assertEquals(a, found.get(1).getUserID());
+		} finally {
+			db.endTransaction(true);
+		}
+	}
+
+	@Test
+	public void unknownUsersCantBeFound() throws Exception {
+		Storage db = this.open();
+		db.startReadTransaction();
+		try {
+			try {
+				db.getUserByName(newName());
+				fail("found a user by a name nobody has");
+			} catch (Exception expected) {
+			}
+			try {
+				db.getUserByID(Integer.MAX_VALUE);
+				fail("found a user by an ID nobody has");
+			} catch (Exception expected) {
+			}
+			try {
+				db.getUserWithPassword(newName(), new String[1]);
+				fail("found a password for a name nobody has");
+			} catch (AuthException expected) {
+			}
+		} finally {
+			db.endTransaction(true);
+		}
+	}
+
+	@Test
+	public void usernamesAreUnique() throws Exception {
+		String name = newName();
+		this.addUser(name);
+		Storage db = this.open();
+		db.startTransaction();
+		try {
+			db.addUser(name, "other", "about me", 40, name + "@example.org");
+			fail("added a second user named " + name);
+		} catch (Exception expected) {
+		} finally {
+			db.endTransaction(false);
+		}
+	}
+
+	@Test
+	public void badProfilesAreRejected() throws Exception {
+		Storage db = this.open();
+		db.startTransaction();
+		try {
+			this.assertRejected(db, newName(), 30, "not an address", ValidationException.BAD_EMAIL);
+			this.assertRejected(db, newName(), 3, "someone@example.com", ValidationException.BAD_AGE);
+			this.assertRejected(db, "No Spaces Or Capitals", 30, "someone@example.com",
+					ValidationException.BAD_USERNAME);
+		} finally {
+			db.endTransaction(false);
+		}
+	}
+
+	@Test
+	public void updatesChangeTheProfile() throws Exception {
+		int userID = this.addUser(newName());
+		Storage db = this.open();
+		db.startTransaction();
+		db.updateUser(userID, "new password", "new about me", 45);
+		db.endTransaction(true);
+
+		db.startReadTransaction();
+		try {
+			assertEquals(45, db.getUserByID(userID).getAge());
+			assertEquals("new password", db.getPassword(userID));
+		} finally {
+			db.endTransaction(true);
+		}
+	}
+
+	@Test
+	public void updatingAMissingUserFails() throws Exception {
+		Storage db = this.open();
+		db.startTransaction();
+		try {
+			db.updateUser(Integer.MAX_VALUE, "password", "about me", 30);
+			fail("updated a user that doesn't exist");
+		} catch (Exception expected) {
+		} finally {
+			db.endTransaction(false);
+		}
+	}
+
+	@Test
+	public void writesNeedAWriteTransaction() throws Exception {
+		Storage db = this.open();
+		db.startReadTransaction();
+		try {
+			String name = newName();
+			db.addUser(name, "password", "about me", 30, name + "@example.com");
+			fail("wrote in a read transaction");
+		} catch (Exception expected) {
+		} finally {
+			db.endTransaction(false);
+		}
+	}
+
+	// authentication
+
+	@Test
+	public void passwordsComeBackAsStored() throws Exception {
+		String name = newName();
+		int userID = this.addUser(name);
+
+		Storage db = this.open();
+		db.startReadTransaction();
+		try {
+			String[] password = new String[1];
+			assertEquals(userID, db.getUserWithPassword(name, password).getUserID());
+			assertEquals("pw-" + name, password[0]);
+			assertEquals("pw-" + name, db.getPassword(userID));
+		} finally {
+			db.endTransaction(true);
+		}
+	}
+
+	@Test
+	public void passwordsAreOnlyReplacedIfUnchanged() throws Exception {
+		String name = newName();
+		int userID = this.addUser(name);
+
+		Storage db = this.open();
+		db.startTransaction();
+		db.replacePassword(userID, "not the password", "hash one");
+		db.endTransaction(true);
+		db.startReadTransaction();
+		assertEquals("pw-" + name, db.getPassword(userID));
+		db.endTransaction(true);
+
+		db.startTransaction();
+		db.replacePassword(userID, "pw-" + name, "hash two");
+		db.endTransaction(true);
+		db.startReadTransaction();
+		assertEquals("hash two", db.getPassword(userID));
+		db.endTransaction(true);
+	}
+
+	// pictures
+
+	@Test
+	public void picturesCanBeSetAndCleared() throws Exception {
+		int userID = this.addUser(newName());
+		Storage db = this.open();
+
+		db.startTransaction();
+		db.updateHasPic(userID, true);
+		db.endTransaction(true);
+		db.startReadTransaction();
+		assertTrue(db.getUserByID(userID).hasPic());
+		db.endTransaction(true);
+
+		db.startTransaction();
+		db.updateHasPic(userID, false);
+		db.endTransaction(true);
+		db.startReadTransaction();
+		assertFalse(db.getUserByID(userID).hasPic());
+		db.endTransaction(true);
+
+		db.startTransaction();
+		try {
+			db.updateHasPic(Integer.MAX_VALUE, true);
+			fail("set a picture for a user that doesn't exist");
+		} catch (Exception expected) {
+		} finally {
+			db.endTransaction(false);
+		}
+	}
+
+	// XP and points
+
+	@Test
+	public void scoresAddUp() throws Exception {
+		int userID = this.addUser(newName());
+		Storage db = this.open();
+		db.startTransaction();
+		db.addScores(userID, 30, 30);
+		db.addScores(userID, 0, -50);
+		db.endTransaction(true);
+
+		db.startReadTransaction();
+		try {
+			User usr = db.getUserByID(userID);
+			assertEquals(30, usr.getExp());
+			assertEquals(-20, usr.getPoints());
+		} finally {
+			db.endTransaction(true);
+		}
+	}
+
+	@Test
+	public void scoresStopAtTheEndsOfTheIntRange() throws Exception {
+		int userID = this.addUser(newName());
+		Storage db = this.open();
+		db.startTransaction();
+		db.addScores(userID, Integer.MAX_VALUE, Integer.MIN_VALUE);
+		db.addScores(userID, 10L * Integer.MAX_VALUE, 10L * Integer.MIN_VALUE);
+		db.endTransaction(true);
+
+		db.startReadTransaction();
+		try {
+			User usr = db.getUserByID(userID);
+			assertEquals(Integer.MAX_VALUE, usr.getExp());
+			assertEquals(Integer.MIN_VALUE, usr.getPoints());
+		} finally {
+			db.endTransaction(true);
+		}
+	}
+
+	@Test
+	public void scoresForDeletedUsersAreSkipped() throws Exception {
+		int userID = this.addUser(newName());
+		this.deleteUser(userID);
+		Storage db = this.open();
+		db.startTransaction();
+		db.addScores(userID, 10, 10);
+		db.endTransaction(true);
+	}
+
+	// messages
+
+	@Test
+	public void messagesAreDeliveredOnceAndThenAcknowledged() throws Exception {
+		int from = this.addUser(newName());
+		int to = this.addUser(newName());
+		int msgID = this.putMessage(from, to, "hello");
+
+		Update received = this.pull(to);
+		assertEquals(1, received.getMessagesReceived().size());
+		Message msg = received.getMessagesReceived().get(0);
+		assertEquals(msgID, msg.getMessageID());
+		assertEquals(from, msg.getFromUserID());
+		assertEquals(to, msg.getToUserID());
+		assertEquals("hello", msg.getContents());
+		assertTrue(this.pull(to).getMessagesReceived().isEmpty());
+
+		// the sender hears it was delivered, once
+		Update receipts = this.pull(from);
+		assertEquals(Arrays.asList(msgID), receipts.getMessagesDelivered());
+		assertTrue(receipts.getMessagesFailed().isEmpty());
+		assertTrue(this.pull(from).getMessagesDelivered().isEmpty());
+		assertTrue(this.idsWithStatus("Acknowledged").contains(msgID));
+	}
+
+	@Test
+	public void messagesToDeletedUsersFail() throws Exception {
+		int from = this.addUser(newName());
+		int to = this.addUser(newName());
+		int msgID = this.putMessage(from, to, "anyone there?");
+		int sentByDeleted = this.putMessage(to, from, "goodbye");
+		this.deleteUser(to);
+
+		assertTrue(this.idsWithStatus("Failed").contains(msgID));
+		// and what they sent goes with them
+		assertFalse(this.idsWithStatus("Undelivered").contains(sentByDeleted));
+		Update update = this.pull(from);
+		assertTrue(update.getMessagesReceived().isEmpty());
+		assertEquals(Arrays.asList(msgID), update.getMessagesFailed());
+	}
+
+	@Test
+	public void oldUndeliveredMessagesExpire() throws Exception {
+		int from = this.addUser(newName());
+		int to = this.addUser(newName());
+		int msgID = this.putMessage(from, to, "too late");
+
+		Storage db = this.open();
+		db.startTransaction();
+		// nothing is that old yet
+		assertEquals(0, db.expireMessages(0, Integer.MAX_VALUE));
+		assertTrue(db.expireMessages(System.currentTimeMillis() + 1000, Integer.MAX_VALUE) >= 1);
+		db.endTransaction(true);
+
+		assertTrue(this.pull(to).getMessagesReceived().isEmpty());
+		assertEquals(Arrays.asList(msgID), this.pull(from).getMessagesFailed());
+	}
+
+	@Test
+	public void acknowledgedMessagesCanBeDeleted() throws Exception {
+		int from = this.addUser(newName());
+		int to = this.addUser(newName());
+		int msgID = this.putMessage(from, to, "read me");
+		this.pull(to);
+		this.pull(from);
+
+		Storage db = this.open();
+		db.startTransaction();
+		int deleted = 0;
+		int n;
+		while ((n = db.deleteAcknowledgedMessages(10)) > 0) {
+			assertTrue(n <= 10);
+			deleted += n;
+		}
+		db.endTransaction(true);
+		assertTrue(deleted >= 1);
+		assertFalse(this.idsWithStatus("Acknowledged").contains(msgID));
+	}
+
+	// transactions
+
+	@Test
+	public void rollingBackToASavepointKeepsTheRest() throws Exception {
+		String kept = newName();
+		String undone = newName();
+		String released = newName();
+
+		Storage db = this.open();
+		db.startTransaction();
+		int keptID = db.addUser(kept, "password", "about me", 30, kept + "@example.com");
+		db.savepoint();
+		db.addUser(undone, "password", "about me", 30, undone + "@example.com");
+		db.addScores(keptID, 5, 5);
+		db.rollbackToSavepoint();
+		db.savepoint();
+		int releasedID = db.addUser(released, "password", "about me", 30, released + "@example.com");
+		db.releaseSavepoint();
+		db.endTransaction(true);
+
+		db.startReadTransaction();
+		try {
+			assertEquals(keptID, db.getUserByName(kept).getUserID());
+			assertEquals(releasedID, db.getUserByName(released).getUserID());
+			assertEquals(0, db.getUserByID(keptID).getPoints());
+			try {
+				db.getUserByName(undone);
+				fail("kept a user added after the savepoint");
+			} catch (Exception expected) {
+			}
+		} finally {
+			db.endTransaction(true);
+		}
+		// the leaderboard follows what was committed. The undone user's ID
+		// may have been handed out again, so only the others are checked.
+		Leaderboard board = StorageManager.getLeaderboard();
+		assertTrue(board.rank(keptID) > 0);
+		assertTrue(board.rank(releasedID) > 0);
+	}
+
+	@Test
+	public void rollingBackUndoesEverything() throws Exception {
+		int from = this.addUser(newName());
+		String name = newName();
+
+		Storage db = this.open();
+		db.startTransaction();
+		int userID = db.addUser(name, "password", "about me", 30, name + "@example.com");
+		int msgID = db.putMessage(from, userID, "never sent");
+		db.updateHasPic(from, true);
+		db.endTransaction(false);
+
+		db.startReadTransaction();
+		try {
+			assertTrue(db.getUsersByIDs(Arrays.asList(userID)).isEmpty());
+			assertFalse(db.getUserByID(from).hasPic());
+		} finally {
+			db.endTransaction(true);
+		}
+		assertEquals(0, StorageManager.getLeaderboard().rank(userID));
+		assertFalse(this.idsWithStatus("Undelivered").contains(msgID));
+	}
+
+	// A read that runs while a write is under way either doesn't see it, or
+	// only sees it once it has committed.
+	@Test
+	public void readsNeverSeeUncommittedWrites() throws Exception {
+		final String name = newName();
+		final boolean[] committed = new boolean[1];
+		final boolean[] seen = new boolean[2];
+		final Exception[] failure = new Exception[1];
+
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Storage db = open();
+				try {
+					db.startReadTransaction();
+					try {
+						db.getUserByName(name);
+						seen[0] = true;
+					} catch (Exception notThere) {
+					}
+					synchronized (committed) {
+						seen[1] = committed[0];
+					}
+					db.endTransaction(true);
+				} catch (Exception e) {
+					failure[0] = e;
+				}
+			}
+		});
+
+		Storage writer = this.open();
+		writer.startTransaction();
+		try {
+			writer.addUser(name, "password", "about me", 30, name + "@example.com");
+			reader.start();
+			reader.join(200);
+			synchronized (committed) {
+				committed[0] = true;
+			}
+			writer.endTransaction(true);
+		} catch (Exception e) {
+			writer.endTransaction(false);
+			throw e;
+		}
+		reader.join();
+
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		assertFalse("read the user before the commit", seen[0] && !seen[1]);
+	}
+
+	private void assertRejected(Storage db, String name, int age, String email, ValidationException expected) {
+		try {
+			db.addUser(name, "password", "about me", age, email);
+			fail("added " + name + ", aged " + age + ", at " + email);
+		} catch (Exception e) {
+			assertEquals(expected, e);
+		}
+	}
+
+	private int addUser(String name) throws Exception {
+		Storage db = this.open();
+		db.startTransaction();
+		try {
+			int userID = db.addUser(name, "pw-" + name, "about me", 30, name + "@example.com");
+			db.endTransaction(true);
+			return userID;
+		} catch (Exception e) {
+			db.endTransaction(false);
+			throw e;
+		}
+	}
+
+	private void deleteUser(int userID) throws Exception {
+		Storage db = this.open();
+		db.startTransaction();
+		db.deleteUser(userID);
+		db.endTransaction(true);
+	}
+
+	private int putMessage(int from, int to, String contents) throws Exception {
+		Storage db = this.open();
+		db.startTransaction();
+		int msgID = db.putMessage(from, to, contents);
+		db.endTransaction(true);
+		return msgID;
+	}
+
+	private Update pull(int userID) throws Exception {
+		Storage db = this.open();
+		db.startTransaction();
+		Update update = db.pullMessages(userID);
+		db.endTransaction(true);
+		return update;
+	}
+
+	private ArrayList<Integer> idsWithStatus(String status) throws Exception {
+		Storage db = this.open();
+		db.startReadTransaction();
+		try {
+			ArrayList<Integer> ids = new ArrayList<Integer>();
+			for (Message msg : db.getMessagesByStatus(status)) {
+				ids.add(msg.getMessageID());
+			}
+			return ids;
+		} finally {
+			db.endTransaction(true);
+		}
+	}
+
+	// Lower case and unique for the whole run, as usernames have to be.
+	private static synchronized String newName() {
+		return String.format("user%06d", ++lastName);
+	}
+}